@@ -6,9 +6,17 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := optional
 
 LOCAL_JAVA_LIBRARIES := telephony-common
-LOCAL_SRC_FILES := $(call all-subdir-java-files)
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+# The SIM simulator and its conformance sequences, left out of user builds.
+ifneq ($(TARGET_BUILD_VARIANT),user)
+LOCAL_SRC_FILES += $(call all-java-files-under, debug/src)
+LOCAL_ASSET_DIR := $(LOCAL_PATH)/debug/assets
+endif
 
 LOCAL_PACKAGE_NAME := Stk
 LOCAL_CERTIFICATE := platform
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
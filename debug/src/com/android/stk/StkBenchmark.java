@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatCmdMessage.SetupEventListSettings;
+import com.android.internal.telephony.cat.CatLog;
+import com.android.internal.telephony.cat.Duration;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * End to end benchmark of the command dispatch paths, run on a StkSimulator
+ * card with "dumpsys activity service com.android.stk/.StkAppService --bench
+ * run [iterations] [slot]", "--bench" prints the report. For every case the
+ * card sends its command the given number of times and answers as the user
+ * would, so commands go through ServiceHandler.handleMessage and user actions
+ * through handleCmdResponse, as those of a real card do. The cases run on the
+ * simulator thread, one after the other.
+ *
+ * Latency is counted from the user action, or from the command for the cases
+ * without one, to the terminal response. Allocations are counted for the whole
+ * process, they include the UI shown for the commands.
+ *
+ * Before them, tight loops time the helpers the dispatch paths call for every
+ * command, on a thread of their own. They report the time and throughput per
+ * call and the allocations of that thread only.
+ */
+final class StkBenchmark implements StkSimCard.Listener {
+    static final int DEFAULT_ITERATIONS = 20;
+    static final int MAX_ITERATIONS = 200;
+
+    private static final String TAG = "StkBenchmark";
+
+    // Name, proactive command and user action, if any, of every case.
+    private static final String[][] CASES = {
+        { "DISPLAY_TEXT", "cmd DISPLAY_TEXT text=Bench user_clear=true",
+                "user confirm value=true" },
+        { "SELECT_ITEM", "cmd SELECT_ITEM title=Bench items=A|B|C", "user select item=2" },
+        { "GET_INPUT", "cmd GET_INPUT text=Bench max_len=4 digits=true",
+                "user input text=1234" },
+        { "GET_INKEY", "cmd GET_INKEY text=Bench yes_no=true", "user input text=YES" },
+        { "LAUNCH_BROWSER", "cmd LAUNCH_BROWSER url=http://localhost",
+                "user confirm value=false" },
+        { "PLAY_TONE", "cmd PLAY_TONE tone=GENERAL_BEEP duration=100", null },
+        { "SET_UP_EVENT_LIST", "cmd SET_UP_EVENT_LIST events=5", null },
+    };
+    // Gives the UI of the command time to come up before the user answers.
+    private static final int USER_DELAY = 100;
+
+    // Helpers timed in tight loops, see runLoop.
+    private static final String[] LOOP_CASES = {
+        "isInteractive", "isEventListed", "calculateDurationInMilis",
+    };
+    private static final int LOOP_ITERATIONS = 1000000;
+
+    private final StkSimulator mSimulator;
+
+    // Accessed on the simulator thread once started.
+    private List<StkSimScript> mScripts;
+    private int mNext;
+    private int mSlotId;
+    private long[] mLatencies;
+    private int mCount;
+    private int mMissing;
+    private int mAllocStart;
+
+    private final List<String> mResults = new ArrayList<String>();
+    private volatile boolean mRunning = false;
+
+    StkBenchmark(StkSimulator simulator) {
+        mSimulator = simulator;
+    }
+
+    /*
+     * Starts the cases on the slot. Returns false if a run is in progress.
+     */
+    synchronized boolean start(int slotId, int iterations) throws IOException {
+        if (mRunning) {
+            return false;
+        }
+        if (!mSimulator.isEnabled()) {
+            throw new IOException("simulator disabled");
+        }
+        if (!mSimulator.hasSlot(slotId)) {
+            throw new IOException("no slot " + slotId);
+        }
+        iterations = Math.max(1, Math.min(iterations, MAX_ITERATIONS));
+        List<StkSimScript> scripts = new ArrayList<StkSimScript>(CASES.length);
+        for (String[] benchCase : CASES) {
+            scripts.add(createScript(benchCase, iterations));
+        }
+        synchronized (mResults) {
+            mResults.clear();
+            mResults.add("bench iterations=" + iterations + " slot=" + slotId);
+        }
+        mScripts = scripts;
+        mNext = 0;
+        mSlotId = slotId;
+        mLatencies = new long[iterations];
+        mRunning = true;
+        Debug.startAllocCounting();
+        new Thread(new Runnable() {
+            public void run() {
+                runLoops();
+                runNext();
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    private void runLoops() {
+        CommandType[] types = CommandType.values();
+        Duration[] durations = {
+            null,
+            new Duration(5, Duration.TimeUnit.SECOND),
+            new Duration(2, Duration.TimeUnit.MINUTE),
+            new Duration(15, Duration.TimeUnit.TENTH_SECOND),
+        };
+        SetupEventListSettings events;
+        try {
+            events = StkCmdFactory.create(CommandType.SET_UP_EVENT_LIST,
+                    Collections.singletonMap("events", "4,5,7,8")).getSetEventList();
+        } catch (RuntimeException e) {
+            addResult("bench loop=" + LOOP_CASES[1] + " error=\"" + e.getMessage() + '"');
+            events = null;
+        }
+        int sink = 0;
+        for (int i = 0; i < LOOP_CASES.length; i++) {
+            // Warms up the loop before it is measured.
+            sink += runLoop(i, LOOP_ITERATIONS / 10, types, events, durations);
+            Debug.resetThreadAllocCount();
+            long start = SystemClock.elapsedRealtimeNanos();
+            sink += runLoop(i, LOOP_ITERATIONS, types, events, durations);
+            long elapsed = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+            int allocs = Debug.getThreadAllocCount();
+            addResult("bench loop=" + LOOP_CASES[i] + " n=" + LOOP_ITERATIONS
+                    + " ns_per_op=" + String.format("%.1f", (double) elapsed / LOOP_ITERATIONS)
+                    + " ops_per_s=" + (LOOP_ITERATIONS * 1000000000L / elapsed)
+                    + " allocs=" + allocs);
+        }
+        // Keeps the results of the loops alive.
+        CatLog.d(TAG, "loops done " + sink);
+    }
+
+    // Calls the helper of the case, returns a value derived from the results.
+    private static int runLoop(int index, int iterations, CommandType[] types,
+            SetupEventListSettings events, Duration[] durations) {
+        int sink = 0;
+        switch (index) {
+        case 0:
+            for (int i = 0; i < iterations; i++) {
+                if (StkAppService.isInteractive(types[i % types.length])) {
+                    sink++;
+                }
+            }
+            break;
+        case 1:
+            for (int i = 0; i < iterations; i++) {
+                if (StkAppService.isEventListed(events, i & 0xf)) {
+                    sink++;
+                }
+            }
+            break;
+        case 2:
+            for (int i = 0; i < iterations; i++) {
+                sink += StkApp.calculateDurationInMilis(durations[i & 3]);
+            }
+            break;
+        }
+        return sink;
+    }
+
+    private void addResult(String result) {
+        CatLog.d(TAG, result);
+        synchronized (mResults) {
+            mResults.add(result);
+        }
+    }
+
+    private static StkSimScript createScript(String[] benchCase, int iterations)
+            throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < iterations; i++) {
+            script.append(benchCase[1]).append('\n');
+            if (benchCase[2] != null) {
+                script.append(benchCase[2]).append(" after=").append(USER_DELAY).append('\n');
+            }
+            script.append("await\n");
+        }
+        script.append("end_session\nwait 200\n");
+        return StkSimScript.parse(benchCase[0], new StringReader(script.toString()));
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mResults) {
+            for (String result : mResults) {
+                pw.println(result);
+            }
+        }
+        pw.println(mRunning ? "result=RUNNING" : (mScripts == null) ? "result=NONE"
+                : "result=DONE");
+    }
+
+    @Override
+    public void onResponse(StkSimCard card, StkSimScript.Step step,
+            StkSimCard.Response response, long latencyNanos) {
+        if (response == null) {
+            mMissing++;
+        } else if (mCount < mLatencies.length) {
+            mLatencies[mCount++] = latencyNanos;
+        }
+    }
+
+    @Override
+    public void onFinished(StkSimCard card, String error) {
+        int allocs = Debug.getGlobalAllocCount() - mAllocStart;
+        String name = mScripts.get(mNext - 1).name;
+        StringBuilder result = new StringBuilder();
+        result.append("bench case=").append(name).append(" n=").append(mCount);
+        if (mCount > 0) {
+            long[] latencies = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            result.append(" avg_us=").append(total / mCount / 1000)
+                    .append(" p50_us=").append(latencies[(mCount - 1) / 2] / 1000)
+                    .append(" p99_us=").append(latencies[(mCount - 1) * 99 / 100] / 1000)
+                    .append(" max_us=").append(latencies[mCount - 1] / 1000)
+                    .append(" process_allocs_per_op=").append(allocs / mCount);
+        }
+        if (mMissing > 0) {
+            result.append(" missing=").append(mMissing);
+        }
+        if (error != null) {
+            result.append(" error=\"").append(error).append('"');
+        }
+        addResult(result.toString());
+        runNext();
+    }
+
+    private void runNext() {
+        if (mNext < mScripts.size()) {
+            mCount = 0;
+            mMissing = 0;
+            mAllocStart = Debug.getGlobalAllocCount();
+            mSimulator.run(mScripts.get(mNext++), mSlotId, this);
+        } else {
+            Debug.stopAllocCounting();
+            mRunning = false;
+        }
+    }
+}
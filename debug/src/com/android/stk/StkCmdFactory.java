@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.Duration;
+import com.android.internal.telephony.cat.Item;
+import com.android.internal.telephony.cat.LaunchBrowserMode;
+import com.android.internal.telephony.cat.Menu;
+import com.android.internal.telephony.cat.PresentationType;
+import com.android.internal.telephony.cat.Tone;
+import com.android.internal.telephony.cat.ToneSettings;
+
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds proactive commands for StkSimulator. CatCmdMessage, CommandDetails,
+ * TextMessage and Input have no public constructor, so those are written in
+ * their parcel layout and the command is read back through the CREATOR of
+ * CatCmdMessage. The parts which can be created, Menu, Duration and
+ * ToneSettings, write themselves. Every command is written out again and
+ * compared with the parcel it was read from, a telephony with another layout
+ * is reported instead of producing corrupted commands, and check() lets
+ * StkSimulator stay disabled on such a telephony.
+ *
+ * Parameters, all optional:
+ *   number, qualifier, text, title, default_text, items (a|b|c),
+ *   default_item, help, high_priority, user_clear, response_needed,
+ *   min_len, max_len, digits, ucs2, packed, echo, yes_no, duration (ms),
+ *   url, mode (LaunchBrowserMode), tone (Tone), vibrate, confirm_text,
+ *   events (comma separated event ids).
+ */
+abstract class StkCmdFactory {
+    private static final String COMMAND_DETAILS =
+            "com.android.internal.telephony.cat.CommandDetails";
+    private static final String TEXT_MESSAGE = "com.android.internal.telephony.cat.TextMessage";
+    private static final String INPUT = "com.android.internal.telephony.cat.Input";
+
+    // Commands check() builds, one for each layout written here.
+    private static final CommandType[] CHECKED_TYPES = {
+        CommandType.DISPLAY_TEXT, CommandType.SELECT_ITEM, CommandType.GET_INPUT,
+        CommandType.PLAY_TONE, CommandType.LAUNCH_BROWSER, CommandType.SET_UP_CALL,
+        CommandType.SET_UP_EVENT_LIST,
+    };
+
+    private StkCmdFactory() {}
+
+    /*
+     * Builds a command of every layout, returns why it failed or null if the
+     * parcel layout of telephony is the one written here.
+     */
+    static String check() {
+        Map<String, String> params = new HashMap<String, String>();
+        for (CommandType type : CHECKED_TYPES) {
+            try {
+                create(type, params);
+            } catch (IllegalStateException e) {
+                return e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Throws IllegalArgumentException for bad parameters, IllegalStateException
+     * if the parcel layout of telephony differs.
+     */
+    static CatCmdMessage create(CommandType type, Map<String, String> params) {
+        Parcel parcel = Parcel.obtain();
+        byte[] written;
+        try {
+            writeCommand(parcel, type, params);
+            written = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        CatCmdMessage cmd;
+        try {
+            cmd = StkRecorder.unmarshall(written);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("CatCmdMessage parcel layout differs: " + e);
+        }
+        byte[] check = StkRecorder.marshall(cmd);
+        if (cmd.getCmdType() != type || !Arrays.equals(written, check)) {
+            throw new IllegalStateException("CatCmdMessage parcel layout differs for " + type);
+        }
+        return cmd;
+    }
+
+    private static void writeCommand(Parcel p, CommandType type, Map<String, String> params) {
+        // CommandDetails
+        p.writeString(COMMAND_DETAILS);
+        p.writeInt(1);
+        p.writeInt(getInt(params, "number", 1));
+        p.writeInt(type.value());
+        p.writeInt(getInt(params, "qualifier", 0));
+
+        switch (type) {
+        case SELECT_ITEM:
+        case SET_UP_MENU:
+            p.writeString(null);
+            p.writeParcelable(createMenu(params), 0);
+            p.writeString(null);
+            break;
+        case GET_INPUT:
+        case GET_INKEY:
+            p.writeString(null);
+            p.writeString(null);
+            writeInput(p, params);
+            break;
+        case SET_UP_EVENT_LIST:
+        case SET_UP_CALL:
+            p.writeString(null);
+            p.writeString(null);
+            p.writeString(null);
+            break;
+        default:
+            writeTextMessage(p, params.get("text"), params);
+            p.writeString(null);
+            p.writeString(null);
+            break;
+        }
+        // Icon load failed
+        p.writeInt(0);
+
+        switch (type) {
+        case LAUNCH_BROWSER:
+            p.writeString(params.get("url"));
+            p.writeInt(getEnum(LaunchBrowserMode.class, params, "mode",
+                    LaunchBrowserMode.LAUNCH_NEW_BROWSER).ordinal());
+            break;
+        case PLAY_TONE:
+            p.writeParcelable(new ToneSettings(getDuration(params),
+                    getEnum(Tone.class, params, "tone", Tone.GENERAL_BEEP),
+                    getBoolean(params, "vibrate", false)), 0);
+            break;
+        case SET_UP_CALL:
+            writeTextMessage(p, params.get("confirm_text"), params);
+            writeTextMessage(p, params.get("text"), params);
+            break;
+        case SET_UP_EVENT_LIST:
+            p.writeIntArray(getInts(params, "events"));
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static void writeTextMessage(Parcel p, String text, Map<String, String> params) {
+        p.writeString(TEXT_MESSAGE);
+        p.writeString(params.containsKey("title") ? params.get("title") : "");
+        p.writeString(text);
+        // Icon
+        p.writeString(null);
+        p.writeInt(0);
+        p.writeInt(getBoolean(params, "high_priority", false) ? 1 : 0);
+        p.writeInt(getBoolean(params, "response_needed", true) ? 1 : 0);
+        p.writeInt(getBoolean(params, "user_clear", false) ? 1 : 0);
+        p.writeParcelable(getDuration(params), 0);
+    }
+
+    private static void writeInput(Parcel p, Map<String, String> params) {
+        p.writeString(INPUT);
+        p.writeString(params.containsKey("text") ? params.get("text") : "");
+        p.writeString(params.containsKey("default_text") ? params.get("default_text") : "");
+        // Icon
+        p.writeString(null);
+        p.writeInt(getInt(params, "min_len", 0));
+        p.writeInt(getInt(params, "max_len", 1));
+        p.writeInt(getBoolean(params, "ucs2", false) ? 1 : 0);
+        p.writeInt(getBoolean(params, "packed", false) ? 1 : 0);
+        p.writeInt(getBoolean(params, "digits", false) ? 1 : 0);
+        p.writeInt(getBoolean(params, "echo", true) ? 1 : 0);
+        p.writeInt(getBoolean(params, "yes_no", false) ? 1 : 0);
+        p.writeInt(getBoolean(params, "help", false) ? 1 : 0);
+        p.writeParcelable(getDuration(params), 0);
+    }
+
+    private static Menu createMenu(Map<String, String> params) {
+        Menu menu = new Menu();
+        menu.title = params.get("title");
+        menu.items = new ArrayList<Item>();
+        String items = params.containsKey("items") ? params.get("items") : "Item 1";
+        int id = 1;
+        for (String text : items.split("\\|")) {
+            menu.items.add(new Item(id++, text));
+        }
+        menu.defaultItem = getInt(params, "default_item", 0);
+        menu.helpAvailable = getBoolean(params, "help", false);
+        menu.presentationType = PresentationType.NOT_SPECIFIED;
+        return menu;
+    }
+
+    private static Duration getDuration(Map<String, String> params) {
+        if (!params.containsKey("duration")) {
+            return null;
+        }
+        int ms = getInt(params, "duration", 0);
+        if (ms % (60 * 1000) == 0) {
+            return new Duration(ms / (60 * 1000), Duration.TimeUnit.MINUTE);
+        } else if (ms % 1000 == 0) {
+            return new Duration(ms / 1000, Duration.TimeUnit.SECOND);
+        }
+        return new Duration(ms / 100, Duration.TimeUnit.TENTH_SECOND);
+    }
+
+    static int getInt(Map<String, String> params, String key, int defaultValue) {
+        String value = params.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.decode(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number for " + key + ": " + value);
+        }
+    }
+
+    static boolean getBoolean(Map<String, String> params, String key, boolean defaultValue) {
+        String value = params.get(key);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static int[] getInts(Map<String, String> params, String key) {
+        String value = params.get(key);
+        if (value == null || value.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                result[i] = Integer.decode(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number for " + key + ": " + value);
+            }
+        }
+        return result;
+    }
+
+    private static <T extends Enum<T>> T getEnum(Class<T> type, Map<String, String> params,
+            String key, T defaultValue) {
+        String value = params.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad value for " + key + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.CatLog;
+
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the TS 102 384 sequences in debug/assets/conformance on a StkSimulator card
+ * and checks every await step of them. Besides the timeout and none
+ * parameters of StkSimScript, an await step takes the expected terminal
+ * response and its latency budget:
+ *
+ *   result=ResultCode, selection=N, input=T, yes_no=B, confirmed=B, budget=ms
+ *
+ * A step fails if the response differs or comes later than its budget, a
+ * script fails if it cannot run to its end. The report ends with a
+ * "result=PASS" or "result=FAIL" line for the caller to check. On a host,
+ * tools/stkconformance/stk_conformance.sh runs the sequences on a connected
+ * device and exits non-zero unless the result is PASS.
+ */
+final class StkConformance implements StkSimCard.Listener {
+    static final String ASSET_DIR = "conformance";
+
+    private static final String TAG = "StkConformance";
+
+    private final AssetManager mAssets;
+    private final StkSimulator mSimulator;
+
+    // Accessed on the simulator thread once started.
+    private List<StkSimScript> mScripts;
+    private int mNext;
+    private int mSlotId;
+
+    private final List<String> mResults = new ArrayList<String>();
+    private volatile boolean mRunning = false;
+    private volatile int mSteps = 0;
+    private volatile int mFailures = 0;
+
+    StkConformance(AssetManager assets, StkSimulator simulator) {
+        mAssets = assets;
+        mSimulator = simulator;
+    }
+
+    /*
+     * Loads the sequences and starts them one after the other on the slot.
+     * Returns false if a run is in progress.
+     */
+    synchronized boolean start(int slotId) throws IOException {
+        if (mRunning) {
+            return false;
+        }
+        if (!mSimulator.isEnabled()) {
+            throw new IOException("simulator disabled");
+        }
+        if (!mSimulator.hasSlot(slotId)) {
+            throw new IOException("no slot " + slotId);
+        }
+        List<StkSimScript> scripts = load(mAssets);
+        synchronized (mResults) {
+            mResults.clear();
+        }
+        mSteps = 0;
+        mFailures = 0;
+        mScripts = scripts;
+        mNext = 0;
+        mSlotId = slotId;
+        mRunning = true;
+        runNext();
+        return true;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    static List<StkSimScript> load(AssetManager assets) throws IOException {
+        String[] names = assets.list(ASSET_DIR);
+        Arrays.sort(names);
+        List<StkSimScript> scripts = new ArrayList<StkSimScript>(names.length);
+        for (String name : names) {
+            Reader reader = new InputStreamReader(assets.open(ASSET_DIR + "/" + name), "UTF-8");
+            try {
+                scripts.add(StkSimScript.parse(name, reader));
+            } finally {
+                reader.close();
+            }
+        }
+        return scripts;
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mResults) {
+            for (String result : mResults) {
+                pw.println(result);
+            }
+        }
+        pw.println("steps=" + mSteps + " failures=" + mFailures);
+        if (mRunning) {
+            pw.println("result=RUNNING");
+        } else if (mScripts == null) {
+            pw.println("result=NONE");
+        } else {
+            pw.println((mFailures == 0 && mSteps > 0) ? "result=PASS" : "result=FAIL");
+        }
+    }
+
+    @Override
+    public void onResponse(StkSimCard card, StkSimScript.Step step,
+            StkSimCard.Response response, long latencyNanos) {
+        String script = mScripts.get(mNext - 1).name;
+        String failure = check(step.params, response, latencyNanos);
+        mSteps++;
+        StringBuilder result = new StringBuilder();
+        result.append((failure == null) ? "PASS " : "FAIL ").append(script).append(':')
+                .append(step.line);
+        if (response != null) {
+            result.append(" latency=").append(latencyNanos / 1000).append("us");
+        }
+        if (failure != null) {
+            mFailures++;
+            result.append(' ').append(failure);
+        }
+        addResult(result.toString());
+    }
+
+    @Override
+    public void onFinished(StkSimCard card, String error) {
+        if (error != null) {
+            mFailures++;
+            addResult("FAIL " + mScripts.get(mNext - 1).name + " " + error);
+        }
+        runNext();
+    }
+
+    private void runNext() {
+        if (mNext < mScripts.size()) {
+            mSimulator.run(mScripts.get(mNext++), mSlotId, this);
+        } else {
+            CatLog.d(TAG, "steps=" + mSteps + " failures=" + mFailures);
+            mRunning = false;
+        }
+    }
+
+    private void addResult(String result) {
+        CatLog.d(TAG, result);
+        synchronized (mResults) {
+            mResults.add(result);
+        }
+    }
+
+    /*
+     * Returns why the response does not meet the expectations of the await
+     * step, or null if it does.
+     */
+    private static String check(Map<String, String> params, StkSimCard.Response response,
+            long latencyNanos) {
+        if (StkCmdFactory.getBoolean(params, "none", false)) {
+            return (response == null) ? null : "unexpected terminal response " + response;
+        }
+        String result = params.get("result");
+        if (result != null && (response.resultCode == null
+                || !result.equals(response.resultCode.name()))) {
+            return "result " + response.resultCode + ", expected " + result;
+        }
+        if (params.containsKey("selection")) {
+            int selection = StkCmdFactory.getInt(params, "selection", 0);
+            if (response.menuSelection != selection) {
+                return "selection " + response.menuSelection + ", expected " + selection;
+            }
+        }
+        String input = params.get("input");
+        if (input != null && !input.equals(response.input)) {
+            return "input " + response.input + ", expected " + input;
+        }
+        if (params.containsKey("yes_no")
+                && response.yesNo != StkCmdFactory.getBoolean(params, "yes_no", false)) {
+            return "yes_no " + response.yesNo + ", expected " + params.get("yes_no");
+        }
+        if (params.containsKey("confirmed")
+                && response.confirmed != StkCmdFactory.getBoolean(params, "confirmed", false)) {
+            return "confirmed " + response.confirmed + ", expected " + params.get("confirmed");
+        }
+        if (params.containsKey("budget")) {
+            int budget = StkCmdFactory.getInt(params, "budget", 0);
+            if (latencyNanos > budget * 1000000L) {
+                return "over budget of " + budget + "ms";
+            }
+        }
+        return null;
+    }
+}
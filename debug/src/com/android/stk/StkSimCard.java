@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface;
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.CatLog;
+import com.android.internal.telephony.cat.CatResponseMessage;
+import com.android.internal.telephony.cat.ResultCode;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Virtual card of one slot, played by StkSimulator. It stands in for the
+ * CatService of the slot and runs a StkSimScript: proactive commands and
+ * session ends are handed to StkAppService like StkCmdReceiver does, user
+ * actions are posted like the STK activities do, and terminal responses are
+ * collected for the await steps. The script runs on the simulator thread.
+ */
+final class StkSimCard implements AppInterface {
+    interface Listener {
+        /*
+         * Called on the simulator thread when an await step got its terminal
+         * response. Latency is counted from the last command or user action.
+         * An await step with none=true reports a null response and a latency
+         * of 0 if no terminal response came within its timeout.
+         */
+        void onResponse(StkSimCard card, StkSimScript.Step step, Response response,
+                long latencyNanos);
+
+        /*
+         * Called on the simulator thread when the script ended, error is null
+         * if all steps ran.
+         */
+        void onFinished(StkSimCard card, String error);
+    }
+
+    /**
+     * Terminal response as seen by the card, taken from the StkResponseMessage
+     * StkAppService sends. Any other CatResponseMessage leaves the fields at
+     * their defaults.
+     */
+    static final class Response {
+        final ResultCode resultCode;
+        final int menuSelection;
+        final String input;
+        final boolean yesNo;
+        final boolean confirmed;
+        // The command answered in its parcel form, null if unknown.
+        final byte[] command;
+        final long time;
+
+        private Response(CatResponseMessage resMsg, long time) {
+            StkResponseMessage message = (resMsg instanceof StkResponseMessage)
+                    ? (StkResponseMessage) resMsg : null;
+            this.resultCode = (message != null) ? message.resultCode : null;
+            this.menuSelection = (message != null) ? message.menuSelection : -1;
+            this.input = (message != null) ? message.input : null;
+            this.yesNo = message != null && Boolean.TRUE.equals(message.yesNo);
+            this.confirmed = message != null && Boolean.TRUE.equals(message.confirmation);
+            this.command = (message != null) ? StkRecorder.marshall(message.cmd) : null;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return "result=" + resultCode + " selection=" + menuSelection;
+        }
+    }
+
+    private static final long DEFAULT_AWAIT_TIMEOUT = 60 * 1000;
+
+    private final int mSlotId;
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+
+    // Accessed on the simulator thread only.
+    private StkSimScript mScript = null;
+    private Listener mListener = null;
+    private int mNext = 0;
+    private int mLatency = 0;
+    private boolean mAwaiting = false;
+    // Time of the last command or user action.
+    private long mStimulusTime = 0;
+    private int mCmdNumber = 0;
+    // The last command in its parcel form.
+    private byte[] mLastCmd = null;
+    private final ArrayDeque<Response> mResponses = new ArrayDeque<Response>();
+
+    // Counters, read by dumpsys.
+    private volatile String mStatus = "idle";
+    private volatile int mCmdCount = 0;
+    private volatile int mResponseCount = 0;
+    private volatile int mStrayCount = 0;
+
+    StkSimCard(int slotId, Context context, Looper looper) {
+        mSlotId = slotId;
+        mContext = context;
+        mHandler = new Handler(looper);
+        mMainHandler = new Handler(context.getMainLooper());
+    }
+
+    int getSlotId() {
+        return mSlotId;
+    }
+
+    String getStatus() {
+        return mStatus + " commands=" + mCmdCount + " responses=" + mResponseCount
+                + " stray=" + mStrayCount;
+    }
+
+    /*
+     * Starts the script, a script already running is stopped first.
+     */
+    void run(final StkSimScript script, final Listener listener) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mScript != null) {
+                    finish("replaced by " + script.name);
+                }
+                mScript = script;
+                mListener = listener;
+                mNext = 0;
+                mLatency = 0;
+                mAwaiting = false;
+                mLastCmd = null;
+                mResponses.clear();
+                mCmdCount = 0;
+                mResponseCount = 0;
+                mStrayCount = 0;
+                mStatus = "running " + script.name;
+                runSteps();
+            }
+        });
+    }
+
+    void stop() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mScript != null) {
+                    finish("stopped");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onCmdResponse(CatResponseMessage resMsg) {
+        // Called on the ServiceHandler thread of the slot.
+        final Response response = new Response(resMsg, SystemClock.elapsedRealtimeNanos());
+        mHandler.post(new Runnable() {
+            public void run() {
+                mResponseCount++;
+                mResponses.addLast(response);
+                if (mAwaiting) {
+                    runSteps();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        stop();
+    }
+
+    private final Runnable mRunSteps = new Runnable() {
+        public void run() {
+            runSteps();
+        }
+    };
+
+    private final Runnable mAwaitTimeout = new Runnable() {
+        public void run() {
+            if (!mAwaiting) {
+                return;
+            }
+            mAwaiting = false;
+            StkSimScript.Step step = mScript.steps.get(mNext);
+            if (!StkCmdFactory.getBoolean(step.params, "none", false)) {
+                finish("no terminal response, " + step);
+                return;
+            }
+            if (mListener != null) {
+                mListener.onResponse(StkSimCard.this, step, null, 0);
+            }
+            mNext++;
+            runSteps();
+        }
+    };
+
+    private void runSteps() {
+        while (mScript != null && mNext < mScript.steps.size()) {
+            StkSimScript.Step step = mScript.steps.get(mNext);
+            long delay;
+            try {
+                delay = execute(step);
+            } catch (IllegalArgumentException e) {
+                finish(step + ": " + e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                finish(step + ": " + e.getMessage());
+                return;
+            }
+            if (delay < 0) {
+                // Waiting for a terminal response.
+                return;
+            }
+            mNext++;
+            if (delay > 0) {
+                mHandler.postDelayed(mRunSteps, delay);
+                return;
+            }
+        }
+        if (mScript != null) {
+            finish(null);
+        }
+    }
+
+    /*
+     * Runs one step, returns the delay before the next one or -1 if the step
+     * waits for a terminal response.
+     */
+    private long execute(StkSimScript.Step step) {
+        String directive = step.directive;
+        if (StkSimScript.CMD.equals(directive)) {
+            sendCommand(step);
+            return 0;
+        } else if (StkSimScript.AWAIT.equals(directive)) {
+            Response response = pollResponse();
+            if (response == null) {
+                if (!mAwaiting) {
+                    mAwaiting = true;
+                    mHandler.postDelayed(mAwaitTimeout, StkCmdFactory.getInt(step.params,
+                            "timeout", (int) DEFAULT_AWAIT_TIMEOUT));
+                }
+                return -1;
+            }
+            mHandler.removeCallbacks(mAwaitTimeout);
+            mAwaiting = false;
+            if (mListener != null) {
+                mListener.onResponse(this, step, response, response.time - mStimulusTime);
+            }
+            return StkCmdFactory.getInt(step.params, "latency", mLatency);
+        } else if (StkSimScript.USER.equals(directive)) {
+            final StkResponse response = createUserResponse(step);
+            mHandler.postDelayed(new Runnable() {
+                public void run() {
+                    mStimulusTime = SystemClock.elapsedRealtimeNanos();
+                    StkAppService.postResponse(mContext, response);
+                }
+            }, StkCmdFactory.getInt(step.params, "after", 0));
+            return 0;
+        } else if (StkSimScript.END_SESSION.equals(directive)) {
+            Bundle args = new Bundle();
+            args.putInt(StkAppService.OPCODE, StkAppService.OP_END_SESSION);
+            args.putInt(StkAppService.SLOT_ID, mSlotId);
+            deliver(args);
+            return 0;
+        } else if (StkSimScript.WAIT.equals(directive)) {
+            return parseArgument(step);
+        } else if (StkSimScript.LATENCY.equals(directive)) {
+            mLatency = (int) parseArgument(step);
+            return 0;
+        }
+        throw new IllegalArgumentException("unknown step");
+    }
+
+    private void sendCommand(StkSimScript.Step step) {
+        CommandType type;
+        try {
+            type = CommandType.valueOf(step.argument);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("unknown command " + step.argument);
+        }
+        // Scripts are shared between the cards, the params are not written.
+        Map<String, String> params = new HashMap<String, String>(step.params);
+        if (!params.containsKey("number")) {
+            params.put("number", Integer.toString(++mCmdNumber & 0xff));
+        }
+        CatCmdMessage cmd = StkCmdFactory.create(type, params);
+        mLastCmd = StkRecorder.marshall(cmd);
+        Bundle args = new Bundle();
+        args.putInt(StkAppService.OPCODE, StkAppService.OP_CMD);
+        args.putParcelable(StkAppService.CMD_MSG, cmd);
+        args.putInt(StkAppService.SLOT_ID, mSlotId);
+        mStimulusTime = SystemClock.elapsedRealtimeNanos();
+        args.putLong(StkAppService.RECEIVE_TIME, mStimulusTime);
+        StkTrace.beginSession(mSlotId);
+        mCmdCount++;
+        deliver(args);
+    }
+
+    private StkResponse createUserResponse(StkSimScript.Step step) {
+        String action = step.argument;
+        int item = StkCmdFactory.getInt(step.params, "item", 1);
+        boolean value = StkCmdFactory.getBoolean(step.params, "value", true);
+        if ("select".equals(action)) {
+            return StkResponse.menuSelection(mSlotId, item, false);
+        } else if ("help".equals(action)) {
+            return StkResponse.menuSelection(mSlotId, item, true);
+        } else if ("input".equals(action)) {
+            String text = step.params.get("text");
+            return StkResponse.input(mSlotId, (text != null) ? text : "", false);
+        } else if ("confirm".equals(action)) {
+            return StkResponse.confirm(StkAppService.RES_ID_CONFIRM, mSlotId, value);
+        } else if ("choice".equals(action)) {
+            return StkResponse.choice(mSlotId, value ? StkAppService.YES : StkAppService.NO);
+        } else if ("back".equals(action)) {
+            return StkResponse.of(StkAppService.RES_ID_BACKWARD, mSlotId);
+        } else if ("end".equals(action)) {
+            return StkResponse.of(StkAppService.RES_ID_END_SESSION, mSlotId);
+        }
+        throw new IllegalArgumentException("unknown user action " + action);
+    }
+
+    /*
+     * Returns the oldest terminal response to the last command. Late answers
+     * to earlier commands, e.g. a dialog timing out, are dropped.
+     */
+    private Response pollResponse() {
+        Response response;
+        while ((response = mResponses.pollFirst()) != null) {
+            if (response.command == null || Arrays.equals(response.command, mLastCmd)) {
+                return response;
+            }
+            mStrayCount++;
+        }
+        return null;
+    }
+
+    private static long parseArgument(StkSimScript.Step step) {
+        try {
+            return Long.parseLong(step.argument);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad time " + step.argument);
+        }
+    }
+
+    private void deliver(final Bundle args) {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                StkAppService.sendToService(mContext, args);
+            }
+        });
+    }
+
+    private void finish(String error) {
+        mHandler.removeCallbacks(mRunSteps);
+        mHandler.removeCallbacks(mAwaitTimeout);
+        String name = mScript.name;
+        Listener listener = mListener;
+        mScript = null;
+        mListener = null;
+        mAwaiting = false;
+        mStatus = (error == null) ? "done " + name : "failed " + name + ": " + error;
+        CatLog.d("StkSimCard", "slot " + mSlotId + " " + mStatus);
+        if (listener != null) {
+            listener.onFinished(this, error);
+        }
+    }
+}
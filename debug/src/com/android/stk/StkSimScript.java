@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Script run by a StkSimCard, one step per line, '#' starts a comment.
+ * Values holding spaces are quoted, e.g. text="Toolkit Test 1".
+ *
+ *   cmd TYPE [param=value ...]   sends a proactive command, see StkCmdFactory
+ *   await [timeout=ms]           waits for the terminal response of the last command,
+ *         [latency=ms]           latency overrides the card latency for this response,
+ *         [none=true]            none expects no terminal response within the timeout
+ *   user ACTION [after=ms]       answers as the user would, ACTION is one of
+ *                                select item=N, input text=T, confirm value=B,
+ *                                choice value=B, back, end, help item=N
+ *   end_session                  ends the proactive session
+ *   wait MS                      pauses the card
+ *   latency MS                   sets the card latency after each terminal response
+ */
+final class StkSimScript {
+    static final String CMD = "cmd";
+    static final String AWAIT = "await";
+    static final String USER = "user";
+    static final String END_SESSION = "end_session";
+    static final String WAIT = "wait";
+    static final String LATENCY = "latency";
+
+    static final class Step {
+        final int line;
+        final String directive;
+        // Positional argument, e.g. the command type.
+        final String argument;
+        final Map<String, String> params;
+
+        Step(int line, String directive, String argument, Map<String, String> params) {
+            this.line = line;
+            this.directive = directive;
+            this.argument = argument;
+            this.params = params;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + ": " + directive + (argument != null ? " " + argument : "");
+        }
+    }
+
+    final String name;
+    final List<Step> steps;
+
+    private StkSimScript(String name, List<Step> steps) {
+        this.name = name;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    static StkSimScript parse(String name, Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Step> steps = new ArrayList<Step>();
+        String text;
+        int line = 0;
+        while ((text = in.readLine()) != null) {
+            line++;
+            List<String> tokens = tokenize(text, line);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            String directive = tokens.get(0);
+            String argument = null;
+            Map<String, String> params = new HashMap<String, String>();
+            for (int i = 1; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                int eq = token.indexOf('=');
+                if (eq > 0) {
+                    params.put(token.substring(0, eq), token.substring(eq + 1));
+                } else if (argument == null) {
+                    argument = token;
+                } else {
+                    throw new IOException(name + ":" + line + ": unexpected " + token);
+                }
+            }
+            if (!isKnown(directive)) {
+                throw new IOException(name + ":" + line + ": unknown step " + directive);
+            }
+            steps.add(new Step(line, directive, argument, params));
+        }
+        return new StkSimScript(name, steps);
+    }
+
+    static boolean isKnown(String directive) {
+        return CMD.equals(directive) || AWAIT.equals(directive) || USER.equals(directive)
+                || END_SESSION.equals(directive) || WAIT.equals(directive)
+                || LATENCY.equals(directive);
+    }
+
+    private static List<String> tokenize(String text, int line) throws IOException {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inToken = true;
+            } else if (c == '#') {
+                break;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) {
+            throw new IOException("line " + line + ": unterminated quote");
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface;
+import com.android.internal.telephony.cat.CatLog;
+
+import android.content.Context;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+
+/**
+ * In-process SIM simulator. Every slot gets a StkSimCard in place of its
+ * CatService, the cards run StkSimScripts on a thread of their own. Selected
+ * on debuggable builds with persist.radio.stk.backend=sim, the slots are the
+ * ones of the device, cards are simulated in slots without a SIM as well.
+ * Loaded by StkAppService as its StkDebugBackend, user builds do not have it.
+ *
+ * The simulator stays disabled, with no card in any slot, if StkCmdFactory
+ * cannot build commands for the telephony it runs with.
+ */
+final class StkSimulator implements StkDebugBackend, StkSimCard.Listener {
+    static final int ALL_SLOTS = -1;
+
+    private final HandlerThread mThread;
+    private final StkSimCard[] mCards;
+    private final StkConformance mConformance;
+    private final StkBenchmark mBenchmark;
+    // Why the simulator is disabled, null if it is not.
+    private final String mError;
+
+    StkSimulator(Context context, int slotCount) {
+        mThread = new HandlerThread("StkSimulator");
+        mThread.start();
+        mCards = new StkSimCard[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            mCards[i] = new StkSimCard(i, context, mThread.getLooper());
+        }
+        mConformance = new StkConformance(context.getAssets(), this);
+        mBenchmark = new StkBenchmark(this);
+        mError = StkCmdFactory.check();
+        if (mError != null) {
+            CatLog.e("StkSimulator", "Simulator disabled: " + mError);
+        }
+    }
+
+    @Override
+    public AppInterface getCatService(int slotId) {
+        return (mError == null) ? mCards[slotId] : null;
+    }
+
+    /*
+     * Debug commands:
+     *   --sim run file [slot]|stop    runs a script on the simulator, see StkSimScript
+     *   --conformance [run [slot]]    runs the conformance sequences or prints their
+     *                                 report, see StkConformance
+     *   --bench [run [iterations [slot]]]  runs the benchmark or prints its report,
+     *                                 see StkBenchmark
+     * Scripts run on all slots by default, the sequences and benchmark on slot 0.
+     */
+    @Override
+    public boolean handleDebugCommand(PrintWriter pw, String[] args) {
+        String arg = (args.length > 1) ? args[1] : null;
+        if ("--sim".equals(args[0]) && "stop".equals(arg)) {
+            stop();
+            pw.println("Simulation stopped");
+        } else if ("--sim".equals(args[0]) && "run".equals(arg) && args.length > 2) {
+            int slotId = (args.length > 3) ? Integer.parseInt(args[3]) : ALL_SLOTS;
+            try {
+                run(new File(args[2]), slotId, null);
+                pw.println("Simulation started");
+            } catch (IOException e) {
+                pw.println("Failed to run " + args[2] + ": " + e.getMessage());
+            }
+        } else if ("--conformance".equals(args[0]) && "run".equals(arg)) {
+            int slotId = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+            try {
+                pw.println(mConformance.start(slotId)
+                        ? "Conformance run started" : "Conformance run in progress");
+            } catch (IOException e) {
+                pw.println("Failed to start the conformance run: " + e.getMessage());
+            }
+        } else if ("--conformance".equals(args[0])) {
+            mConformance.dump(pw);
+        } else if ("--bench".equals(args[0]) && "run".equals(arg)) {
+            int iterations = (args.length > 2) ? Integer.parseInt(args[2])
+                    : StkBenchmark.DEFAULT_ITERATIONS;
+            int slotId = (args.length > 3) ? Integer.parseInt(args[3]) : 0;
+            try {
+                pw.println(mBenchmark.start(slotId, iterations)
+                        ? "Benchmark started" : "Benchmark in progress");
+            } catch (IOException e) {
+                pw.println("Failed to start the benchmark: " + e.getMessage());
+            }
+        } else if ("--bench".equals(args[0])) {
+            mBenchmark.dump(pw);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Loads the script and runs it on the given slot or on all of them, with
+     * the given listener or one logging the results if null.
+     */
+    void run(File file, int slotId, StkSimCard.Listener listener) throws IOException {
+        if (mError != null) {
+            throw new IOException("simulator disabled, " + mError);
+        }
+        if (!hasSlot(slotId) && slotId != ALL_SLOTS) {
+            throw new IOException("no slot " + slotId);
+        }
+        StkSimScript script;
+        Reader reader = new FileReader(file);
+        try {
+            script = StkSimScript.parse(file.getName(), reader);
+        } finally {
+            reader.close();
+        }
+        run(script, slotId, listener);
+    }
+
+    void run(StkSimScript script, int slotId, StkSimCard.Listener listener) {
+        for (StkSimCard card : mCards) {
+            if (slotId == ALL_SLOTS || card.getSlotId() == slotId) {
+                card.run(script, (listener != null) ? listener : this);
+            }
+        }
+    }
+
+    boolean hasSlot(int slotId) {
+        return slotId >= 0 && slotId < mCards.length;
+    }
+
+    boolean isEnabled() {
+        return mError == null;
+    }
+
+    void stop() {
+        for (StkSimCard card : mCards) {
+            card.stop();
+        }
+    }
+
+    @Override
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    @Override
+    public void dump(PrintWriter pw, boolean compact) {
+        if (mError != null) {
+            pw.println(compact ? "sim disabled=\"" + mError + "\""
+                    : "  sim disabled: " + mError);
+            return;
+        }
+        for (StkSimCard card : mCards) {
+            if (compact) {
+                pw.println("sim slot=" + card.getSlotId() + " status=\"" + card.getStatus() + "\"");
+            } else {
+                pw.println("  sim slot " + card.getSlotId() + ": " + card.getStatus());
+            }
+        }
+    }
+
+    @Override
+    public void onResponse(StkSimCard card, StkSimScript.Step step,
+            StkSimCard.Response response, long latencyNanos) {
+        CatLog.d("StkSimulator", "slot " + card.getSlotId() + " " + step + ": " + response
+                + " in " + (latencyNanos / 1000) + "us");
+    }
+
+    @Override
+    public void onFinished(StkSimCard card, String error) {
+        // The card logs its status.
+    }
+}
@@ -39,8 +39,7 @@ public class BootCompletedReceiver extends BroadcastReceiver {
         if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
             Bundle args = new Bundle();
             args.putInt(StkAppService.OPCODE, StkAppService.OP_BOOT_COMPLETED);
-            context.startService(new Intent(context, StkAppService.class)
-                    .putExtras(args));
+            StkAppService.sendToService(context, args);
             CatLog.d(LOG_TAG, "[ACTION_BOOT_COMPLETED]");
         } else if(action.equals(Intent.ACTION_USER_INITIALIZE)) {
             if (!android.os.Process.myUserHandle().isOwner()) {
@@ -24,11 +24,45 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.PackageManager;
 
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
  * Application installer for SIM Toolkit.
  *
+ * The launcher state requested per slot is applied on a worker thread.
+ * Requests made while a write is queued are merged into it, and a state
+ * equal to the one last applied is not written again.
  */
 abstract class StkAppInstaller {
+    private static final String TAG = "StkAppInstaller";
+
+    private static final String[] LAUNCHER_ACTIVITIES = {
+        "com.android.stk.StkLauncherActivity",
+        "com.android.stk.StkLauncherActivity2",
+        "com.android.stk.StkLauncherActivity3"
+    };
+
+    // Not read back from the PackageManager yet.
+    private static final int STATE_UNKNOWN = -1;
+
+    private static final Executor sWorker = Executors.newSingleThreadExecutor();
+    private static final Object sLock = new Object();
+    private static final int[] sRequested = new int[LAUNCHER_ACTIVITIES.length];
+    private static final int[] sApplied = new int[LAUNCHER_ACTIVITIES.length];
+    private static PackageManager sPackageManager;
+    private static boolean sFlushPending = false;
+    private static int sWriteCount = 0;
+    private static int sSkipCount = 0;
+
+    static {
+        for (int i = 0; i < LAUNCHER_ACTIVITIES.length; i++) {
+            sRequested[i] = STATE_UNKNOWN;
+            sApplied[i] = STATE_UNKNOWN;
+        }
+    }
+
     private StkAppInstaller() {}
 
     static void install(Context context, int slotId) {
@@ -39,6 +73,19 @@ abstract class StkAppInstaller {
         setAppState(context, false, slotId);
     }
 
+    /*
+     * Whether the launcher of the slot is, or is about to be, enabled as far
+     * as this process knows. Until the state was requested or read back, e.g.
+     * at boot or after a restart of the phone process, it may be enabled.
+     */
+    static boolean isInstalled(int slotId) {
+        synchronized (sLock) {
+            int state = sRequested[slotId] != STATE_UNKNOWN ? sRequested[slotId]
+                    : sApplied[slotId];
+            return state != PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        }
+    }
+
     private static void setAppState(Context context, boolean install, int slotId) {
         if (context == null) {
             return;
@@ -47,24 +94,112 @@ abstract class StkAppInstaller {
         if (pm == null) {
             return;
         }
-        ComponentName cName;
-        String[] launcherActivity = {
-            "com.android.stk.StkLauncherActivity",
-            "com.android.stk.StkLauncherActivity2",
-            "com.android.stk.StkLauncherActivity3"
-        };
-        // check that STK app package is known to the PackageManager
-        cName = new ComponentName("com.android.stk",
-                    launcherActivity[slotId]);
-
         int state = install ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
                 : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
 
+        synchronized (sLock) {
+            sPackageManager = pm;
+            // Nothing to do if the queued write or the last applied state
+            // already match.
+            if (sFlushPending ? sRequested[slotId] == state : sApplied[slotId] == state) {
+                sRequested[slotId] = state;
+                sSkipCount++;
+                return;
+            }
+            sRequested[slotId] = state;
+            if (sFlushPending) {
+                return;
+            }
+            sFlushPending = true;
+        }
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    // Applies the latest requested state of every slot, on the worker.
+    private static void flush() {
+        PackageManager pm;
+        int[] requested;
+        synchronized (sLock) {
+            sFlushPending = false;
+            pm = sPackageManager;
+            requested = sRequested.clone();
+        }
+        for (int slotId = 0; slotId < requested.length; slotId++) {
+            int state = requested[slotId];
+            if (state == STATE_UNKNOWN || state == getApplied(pm, slotId)) {
+                continue;
+            }
+            // check that STK app package is known to the PackageManager
+            ComponentName cName = new ComponentName("com.android.stk",
+                    LAUNCHER_ACTIVITIES[slotId]);
+            try {
+                pm.setComponentEnabledSetting(cName, state,
+                        PackageManager.DONT_KILL_APP);
+                synchronized (sLock) {
+                    sApplied[slotId] = state;
+                    sWriteCount++;
+                }
+            } catch (Exception e) {
+                CatLog.d(TAG, "Could not change STK app state");
+            }
+        }
+    }
+
+    /*
+     * The state last applied to the launcher of the slot, read once from the
+     * PackageManager. The manifest disables the launchers, the default state
+     * counts as disabled.
+     */
+    private static int getApplied(PackageManager pm, int slotId) {
+        synchronized (sLock) {
+            if (sApplied[slotId] != STATE_UNKNOWN) {
+                return sApplied[slotId];
+            }
+        }
+        int state;
         try {
-            pm.setComponentEnabledSetting(cName, state,
-                    PackageManager.DONT_KILL_APP);
+            state = pm.getComponentEnabledSetting(new ComponentName("com.android.stk",
+                    LAUNCHER_ACTIVITIES[slotId]));
         } catch (Exception e) {
-            CatLog.d("StkAppInstaller", "Could not change STK app state");
+            CatLog.d(TAG, "Could not read STK app state");
+            return STATE_UNKNOWN;
+        }
+        if (state != PackageManager.COMPONENT_ENABLED_STATE_ENABLED) {
+            state = PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        }
+        synchronized (sLock) {
+            sApplied[slotId] = state;
+        }
+        return state;
+    }
+
+    static void dump(PrintWriter pw) {
+        synchronized (sLock) {
+            StringBuilder sb = new StringBuilder("  launchers:");
+            for (int i = 0; i < sApplied.length; i++) {
+                sb.append(" ").append(i).append("=").append(describe(sApplied[i]));
+                if (sRequested[i] != sApplied[i] && sRequested[i] != STATE_UNKNOWN) {
+                    sb.append("->").append(describe(sRequested[i]));
+                }
+            }
+            pw.println(sb.append(" writes=").append(sWriteCount)
+                    .append(" skipped=").append(sSkipCount));
+        }
+    }
+
+    private static String describe(int state) {
+        switch (state) {
+        case PackageManager.COMPONENT_ENABLED_STATE_ENABLED:
+            return "on";
+        case PackageManager.COMPONENT_ENABLED_STATE_DISABLED:
+            return "off";
+        default:
+            return "?";
         }
     }
 }
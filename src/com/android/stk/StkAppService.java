@@ -18,8 +18,6 @@
 
 package com.android.stk;
 
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
 import android.app.AlertDialog;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -35,13 +33,14 @@ import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Vibrator;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
@@ -56,7 +55,6 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.internal.telephony.cat.AppInterface;
-import com.android.internal.telephony.cat.CatServiceFactory;
 import com.android.internal.telephony.cat.LaunchBrowserMode;
 import com.android.internal.telephony.cat.Menu;
 import com.android.internal.telephony.cat.Item;
@@ -66,16 +64,21 @@ import com.android.internal.telephony.cat.CatCmdMessage;
 import com.android.internal.telephony.cat.CatCmdMessage.BrowserSettings;
 import com.android.internal.telephony.cat.CatCmdMessage.SetupEventListSettings;
 import com.android.internal.telephony.cat.CatLog;
-import com.android.internal.telephony.cat.CatResponseMessage;
 import com.android.internal.telephony.cat.TextMessage;
 import com.android.internal.telephony.cat.ToneSettings;
 import com.android.internal.telephony.GsmAlphabet;
 import com.android.internal.telephony.uicc.IccRefreshResponse;
 import com.android.internal.telephony.uicc.IccCardStatus.CardState;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 
 import static com.android.internal.telephony.cat.CatCmdMessage.
                    SetupEventListConstants.IDLE_SCREEN_AVAILABLE_EVENT;
@@ -95,8 +98,48 @@ public class StkAppService extends Service {
     private AppInterface[] mStkService;
     private Context mContext = null;
     private NotificationManager mNotificationManager = null;
-    private HandlerThread[] mHandlerThread;
+    private StkLooperPool mLooperPool;
+    // Per slot command latencies, kept across handler retirement.
+    private StkLatencyTracker[] mLatencyTracker;
+    // Per slot history of the last commands and responses, for dumpsys.
+    private StkHistory[] mHistory;
+    // Stand-in CatServices installed per slot by StkReplayer.
+    private AppInterface[] mCatServiceOverride;
+    // Set while requests are recorded, see StkRecorder.
+    private volatile StkRecorder mRecorder = null;
+    private StkReplayer mReplayer;
+    // Set once the journal file is mapped, see StkJournal.
+    private volatile StkJournal mJournal = null;
+    // Source of the CatServices, mDebugBackend if the simulator backend is selected.
+    private StkCatBackend mCatBackend = StkCatBackend.RADIO;
+    private StkDebugBackend mDebugBackend = null;
+    // Guards creation and retirement of the per slot ServiceHandlers.
+    private final Object mHandlerLock = new Object();
+    private boolean[] mHandlerPending;
+    // Intents received while a needed handler waits for its looper, in arrival order.
+    private final ArrayDeque<Bundle> mEarlyIntents = new ArrayDeque<Bundle>();
+    private final Handler mMainHandler = new Handler();
+    private int mIdleTimeout;
+    private int mBrowserHoldTime;
+    private int mCmdQueueSize;
+    private int mCmdMaxAge;
+    private int mUninstallGrace;
+    // Slots whose launcher is uninstalled once the grace window passes without the card
+    // coming back, and whether the menu snapshot goes too. Guarded by mUninstallLock.
+    private final Object mUninstallLock = new Object();
+    private boolean[] mUninstallPending;
+    private boolean[] mUninstallDeletesSnapshot;
+    private Runnable[] mUninstallExpiry;
     private int mSimCount = TelephonyManager.getDefault().getSimCount();
+    // Set once the service asked to be stopped, requests then go through startService().
+    private boolean mStopping = false;
+    // Number of requests received through onStart() and through sendToService().
+    private int mIntentRequestCount = 0;
+    private int mDirectRequestCount = 0;
+    // Number of user responses posted straight to a ServiceHandler.
+    private int mDirectResponseCount = 0;
+    // Number of main menus shown by the launchers without an OP_LAUNCH_APP request.
+    private int mDirectLaunchCount = 0;
     static StkAppService sInstance = null;
 
     // Used for setting FLAG_ACTIVITY_NO_USER_ACTION when
@@ -109,6 +152,7 @@ public class StkAppService extends Service {
     // constants
     static final String OPCODE = "op";
     static final String CMD_MSG = "cmd message";
+    static final String RECEIVE_TIME = "receive time";
     static final String RES_ID = "response id";
     static final String MENU_SELECTION = "menu selection";
     static final String INPUT = "input";
@@ -150,6 +194,13 @@ public class StkAppService extends Service {
     // Message id to remove stop tone message from queue.
     private static final int STOP_TONE_WHAT = 100;
 
+    // Max number of intents kept while the slot handlers are being prepared.
+    private static final int MAX_EARLY_INTENTS = 32;
+
+    // Message id to check whether a slot's handler went idle.
+    private static final int OP_IDLE_CHECK = 18;
+    private static final int IDLE_CHECK_WHAT = 101;
+
     // Response ids
     static final int RES_ID_MENU_SELECTION = 11;
     static final int RES_ID_INPUT = 12;
@@ -177,39 +228,240 @@ public class StkAppService extends Service {
     // system property to set the STK specific default url for launch browser proactive cmds
     private static final String STK_BROWSER_DEFAULT_URL_SYSPROP = "persist.radio.stk.default_url";
 
+    // system property to set the time in ms a slot may stay idle before its handler is
+    // retired and its looper released, 0 keeps the handlers for the service lifetime.
+    private static final String STK_IDLE_TIMEOUT_SYSPROP = "persist.radio.stk.idle_timeout";
+    private static final int STK_IDLE_TIMEOUT_DEFAULT = (5 * 60 * 1000);
+
+    // system property to set the time in ms DISPLAY TEXT commands are held back after
+    // launching the browser, to let the browser come up first.
+    private static final String STK_BROWSER_HOLD_SYSPROP = "persist.radio.stk.browser_hold";
+    private static final int STK_BROWSER_HOLD_DEFAULT = (10 * 1000);
+
+    // system properties to set the capacity of a slot's command queue, and the time in ms
+    // after which a queued command is answered without being shown to the user.
+    private static final String STK_CMD_QUEUE_SIZE_SYSPROP = "persist.radio.stk.cmd_queue_size";
+    private static final int STK_CMD_QUEUE_SIZE_DEFAULT = 8;
+    private static final String STK_CMD_MAX_AGE_SYSPROP = "persist.radio.stk.cmd_max_age";
+    private static final int STK_CMD_MAX_AGE_DEFAULT = (60 * 1000);
+    // Number of commands and responses kept per slot for dumpsys.
+    private static final int STK_HISTORY_SIZE = 32;
+    private static final String STK_RECORD_FILE = "stk_record.bin";
+
+    // system property to set the number of records kept per slot by StkJournal, 0 turns
+    // the journal off.
+    private static final String STK_JOURNAL_SIZE_SYSPROP = "persist.radio.stk.journal_size";
+    private static final int STK_JOURNAL_SIZE_DEFAULT = 4096;
+    private static final int STK_JOURNAL_SIZE_MAX = 65536;
+    private static final String STK_JOURNAL_FILE = "stk_journal.bin";
+
+    // "sim" selects StkDebugBackend as the CatService backend, debuggable builds only.
+    private static final String STK_BACKEND_SYSPROP = "persist.radio.stk.backend";
+    private static final String STK_BACKEND_SIM = "sim";
+
+    // system property to set the time in ms the launcher and the menu snapshot of a slot
+    // are kept after the card went absent or was reset, before they are removed. The card
+    // coming back with its SET UP MENU within that time leaves them in place, 0 removes
+    // them right away.
+    private static final String STK_UNINSTALL_GRACE_SYSPROP = "persist.radio.stk.uninstall_grace";
+    private static final int STK_UNINSTALL_GRACE_DEFAULT = (20 * 1000);
+
     @Override
     public void onCreate() {
         mStkService = new AppInterface[mSimCount];
-        mHandlerThread = new HandlerThread[mSimCount];
+        mLooperPool = new StkLooperPool(mSimCount, new StkLooperPool.Callback() {
+            public void onLooperReady() {
+                mMainHandler.post(mDrainEarlyIntents);
+            }
+        });
         mServiceHandler = new ServiceHandler[mSimCount];
+        mHandlerPending = new boolean[mSimCount];
+        mLatencyTracker = new StkLatencyTracker[mSimCount];
+        mHistory = new StkHistory[mSimCount];
+        mCatServiceOverride = new AppInterface[mSimCount];
+        mReplayer = new StkReplayer(this, mMainHandler, mSimCount);
+        for (int i = 0; i < mSimCount; i++) {
+            mLatencyTracker[i] = new StkLatencyTracker();
+            mHistory[i] = new StkHistory(STK_HISTORY_SIZE);
+        }
+        mIdleTimeout = SystemProperties.getInt(STK_IDLE_TIMEOUT_SYSPROP, STK_IDLE_TIMEOUT_DEFAULT);
+        mBrowserHoldTime = SystemProperties.getInt(STK_BROWSER_HOLD_SYSPROP,
+                STK_BROWSER_HOLD_DEFAULT);
+        mCmdQueueSize = SystemProperties.getInt(STK_CMD_QUEUE_SIZE_SYSPROP,
+                STK_CMD_QUEUE_SIZE_DEFAULT);
+        mCmdMaxAge = SystemProperties.getInt(STK_CMD_MAX_AGE_SYSPROP, STK_CMD_MAX_AGE_DEFAULT);
+        mUninstallGrace = SystemProperties.getInt(STK_UNINSTALL_GRACE_SYSPROP,
+                STK_UNINSTALL_GRACE_DEFAULT);
+        mUninstallPending = new boolean[mSimCount];
+        mUninstallDeletesSnapshot = new boolean[mSimCount];
+        mUninstallExpiry = new Runnable[mSimCount];
+        for (int i = 0; i < mSimCount; i++) {
+            final int slotId = i;
+            mUninstallExpiry[i] = new Runnable() {
+                public void run() {
+                    onUnInstallGraceExpired(slotId);
+                    if (!mStopping && isStopServiceRequired()) {
+                        CatLog.d(this, "stopping StkAppService");
+                        mStopping = true;
+                        stopSelf();
+                    }
+                }
+            };
+        }
+        if (Build.IS_DEBUGGABLE
+                && STK_BACKEND_SIM.equals(SystemProperties.get(STK_BACKEND_SYSPROP))) {
+            mDebugBackend = loadDebugBackend(this, mSimCount);
+            if (mDebugBackend != null) {
+                CatLog.d(this, "Using the SIM simulator");
+                mCatBackend = mDebugBackend;
+            }
+        }
+        openJournal(Math.min(SystemProperties.getInt(STK_JOURNAL_SIZE_SYSPROP,
+                STK_JOURNAL_SIZE_DEFAULT), STK_JOURNAL_SIZE_MAX));
 
         mContext = getBaseContext();
-        InitHandlerThread();
         mNotificationManager = (NotificationManager) mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
         sInstance = this;
     }
 
+    // Maps the journal off the main thread, records made before are dropped.
+    private void openJournal(final int capacity) {
+        if (capacity <= 0) {
+            return;
+        }
+        final File file = new File(getFilesDir(), STK_JOURNAL_FILE);
+        new Thread(new Runnable() {
+            public void run() {
+                mJournal = StkJournal.open(file, mSimCount, capacity);
+            }
+        }, "StkJournalOpen").start();
+    }
+
     @Override
     public void onStart(Intent intent, int startId) {
+        StkTrace.begin("StkAppService.onStart");
+        try {
+            // onStart() method can be passed a null intent
+            // TODO: replace onStart() with onStartCommand()
+            if (intent == null) {
+                return;
+            }
 
-        waitForLooper();
+            Bundle args = intent.getExtras();
 
-        // onStart() method can be passed a null intent
-        // TODO: replace onStart() with onStartCommand()
-        if (intent == null) {
-            return;
+            if (args == null) {
+                return;
+            }
+
+            mIntentRequestCount++;
+            handleRequest(args);
+        } finally {
+            StkTrace.end();
         }
+    }
 
-        Bundle args = intent.getExtras();
+    /*
+     * Package api used by receivers and activities running in the phone process to
+     * hand a request to the service. The request is handled in place if the service
+     * is running, which saves marshalling it into an intent and the round trip
+     * through ActivityManager. Must be called on the main thread.
+     */
+    static void sendToService(Context context, Bundle args) {
+        StkAppService service = sInstance;
+        if (service != null && !service.mStopping
+                && Looper.myLooper() == Looper.getMainLooper()) {
+            service.mDirectRequestCount++;
+            StkTrace.begin("StkAppService.sendToService");
+            try {
+                service.handleRequest(args);
+            } finally {
+                StkTrace.end();
+            }
+        } else {
+            context.startService(new Intent(context, StkAppService.class).putExtras(args));
+        }
+    }
 
-        if (args == null) {
+    /*
+     * Package api used by the STK activities to send the user response. The
+     * response is posted to the ServiceHandler of its slot if that one is running
+     * and no earlier request waits in the early intent buffer, otherwise it is sent
+     * as a request.
+     */
+    static void postResponse(Context context, StkResponse response) {
+        StkAppService service = sInstance;
+        StkRecorder recorder = (service != null) ? service.mRecorder : null;
+        if (recorder != null) {
+            recorder.record(response.toBundle());
+        }
+        if (service != null && service.postToHandler(response)) {
             return;
         }
+        sendToService(context, response.toBundle());
+    }
+
+    /*
+     * Package api used by the launchers to show the main menu of the slot
+     * straight from the running service, without the OP_LAUNCH_APP round trip
+     * through the ServiceHandler. Returns false if the service or the menu is
+     * not there yet, the launcher then sends OP_LAUNCH_APP. Main thread only.
+     */
+    static boolean launchMainMenu(Context context, int slotId) {
+        StkAppService service = sInstance;
+        if (service == null || service.mStopping || slotId < 0 || slotId >= service.mSimCount
+                || service.getMenu(slotId) == null) {
+            return false;
+        }
+        service.mDirectLaunchCount++;
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setClassName(PACKAGE_NAME, MENU_ACTIVITY_NAME);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        intent.putExtra("STATE", StkMenuActivity.STATE_MAIN);
+        intent.putExtra(SLOT_ID, slotId);
+        StkTrace.beginUi(slotId);
+        context.startActivity(intent);
+        return true;
+    }
+
+    private boolean postToHandler(StkResponse response) {
+        if (mStopping || response.slotId < 0 || response.slotId >= mSimCount) {
+            return false;
+        }
+        synchronized (mHandlerLock) {
+            ServiceHandler handler = mServiceHandler[response.slotId];
+            // Do not overtake the requests waiting for their handlers.
+            if (handler == null || handler.isRetired() || !mEarlyIntents.isEmpty()) {
+                return false;
+            }
+            mDirectResponseCount++;
+            Message msg = handler.obtainMessage();
+            msg.arg1 = response.opCode;
+            if (response.opCode == OP_STOP_TONE_USER) {
+                msg.what = STOP_TONE_WHAT;
+            }
+            msg.obj = response;
+            return handler.sendMessage(msg);
+        }
+    }
 
+    void handleRequest(Bundle args) {
         int slotId = args.getInt(SLOT_ID);
         int opCode = args.getInt(OPCODE);
 
+        // User responses are recorded in postResponse().
+        StkRecorder recorder = mRecorder;
+        if (recorder != null && opCode != OP_RESPONSE && opCode != OP_STOP_TONE_USER) {
+            recorder.record(args);
+        }
+
+        // A card showing up on a slot being replayed ends the replay.
+        if ((opCode == OP_CMD || opCode == OP_CARD_STATUS_CHANGED)
+                && slotId >= 0 && slotId < mSimCount && mReplayer.isReplaying(slotId)
+                && !args.getBoolean(StkReplayer.REPLAYED)) {
+            mReplayer.abort("live op " + opCode + " on slot " + slotId);
+        }
+
         updateCatService(slotId);
 
         // Boot Complete and Idle screen notifications will not contain a
@@ -223,20 +475,199 @@ public class StkAppService extends Service {
             checkAndUnInstallStkApps();
             if (isStopServiceRequired()) {
                 CatLog.d(this, "stopping StkAppService");
+                mStopping = true;
                 stopSelf();
                 return;
             }
         }
 
-        Message msg = mServiceHandler[slotId].obtainMessage();
+        synchronized (mHandlerLock) {
+            // Keep the arrival order: once an intent waits, the later ones wait too.
+            if (!mEarlyIntents.isEmpty() || !prepareServiceHandlers(slotId, opCode)) {
+                mEarlyIntents.addLast(args);
+                if (mEarlyIntents.size() > MAX_EARLY_INTENTS) {
+                    Bundle dropped = evictEarlyIntent();
+                    CatLog.e(this, "Early intent buffer full, dropping op "
+                            + dropped.getInt(OPCODE));
+                    answerEarlyCmd(dropped);
+                }
+                return;
+            }
+            dispatchToHandler(slotId, args);
+        }
+    }
+
+    // Dispatches the intents held back while handlers were waiting for their loopers.
+    private final Runnable mDrainEarlyIntents = new Runnable() {
+        public void run() {
+            synchronized (mHandlerLock) {
+                for (int i = 0; i < mSimCount; i++) {
+                    if (mHandlerPending[i]) {
+                        finishServiceHandler(i);
+                    }
+                }
+                while (!mEarlyIntents.isEmpty()) {
+                    Bundle args = mEarlyIntents.peekFirst();
+                    int slotId = args.getInt(SLOT_ID);
+                    if (!prepareServiceHandlers(slotId, args.getInt(OPCODE))) {
+                        // Wait for the next looper to get ready.
+                        return;
+                    }
+                    mEarlyIntents.pollFirst();
+                    dispatchToHandler(slotId, args);
+                }
+            }
+        }
+    };
+
+    /*
+     * Takes the oldest buffered intent that is not a proactive command out of
+     * the buffer, or the oldest command if nothing else is left.
+     * Called with mHandlerLock held.
+     */
+    private Bundle evictEarlyIntent() {
+        Iterator<Bundle> it = mEarlyIntents.iterator();
+        while (it.hasNext()) {
+            Bundle args = it.next();
+            if (args.getInt(OPCODE) != OP_CMD) {
+                it.remove();
+                return args;
+            }
+        }
+        return mEarlyIntents.pollFirst();
+    }
+
+    /*
+     * Answers a proactive command taken out of the early intent buffer with
+     * TERMINAL_CRNTLY_UNABLE_TO_PROCESS so the card does not wait for it. A command
+     * followed by another one of the same slot in the buffer is no longer the one
+     * CatService waits for and is left unanswered, as telephony answered types are.
+     * Called with mHandlerLock held.
+     */
+    private void answerEarlyCmd(Bundle args) {
+        if (args.getInt(OPCODE) != OP_CMD) {
+            return;
+        }
+        int slotId = args.getInt(SLOT_ID);
+        CatCmdMessage cmd = args.getParcelable(CMD_MSG);
+        if (cmd == null || slotId < 0 || slotId >= mSimCount) {
+            return;
+        }
+        for (Bundle later : mEarlyIntents) {
+            if (later.getInt(OPCODE) == OP_CMD && later.getInt(SLOT_ID) == slotId) {
+                return;
+            }
+        }
+        boolean answer = isAnsweredByApp(cmd.getCmdType()) && mStkService[slotId] != null;
+        ResultCode resultCode = ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS;
+        StkJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(slotId, StkJournal.KIND_DROPPED, cmd.getCmdType(),
+                    StkJournal.NONE, answer ? resultCode : null, -1);
+        }
+        mHistory[slotId].add(StkHistory.KIND_DROPPED, cmd.getCmdType().name(),
+                answer ? String.valueOf(resultCode) : "unanswered");
+        if (answer) {
+            StkResponseMessage resMsg = new StkResponseMessage(cmd);
+            resMsg.setResultCode(resultCode);
+            StkRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.recordResponse(slotId, resMsg);
+            }
+            mStkService[slotId].onCmdResponse(resMsg);
+        }
+    }
+
+    private static boolean isBroadcastOp(int opCode) {
+        return (opCode == OP_BOOT_COMPLETED) || (opCode == OP_IDLE_SCREEN)
+                || (opCode == OP_LOCALE_CHANGED);
+    }
+
+    // Ops the addressed slot handles even if no card ever showed up on it.
+    private static boolean isCardlessOp(int opCode) {
+        return isBroadcastOp(opCode) || (opCode == OP_CARD_STATUS_CHANGED);
+    }
+
+    /*
+     * Makes sure the handlers an intent is delivered to can take messages,
+     * restoring retired ones. Returns false while one of them still waits for
+     * its looper. Must be called with mHandlerLock held.
+     */
+    private boolean prepareServiceHandlers(int slotId, int opCode) {
+        boolean ready = true;
+        for (int i = 0; i < mSimCount; i++) {
+            if ((i != slotId) && !isBroadcastOp(opCode)) {
+                continue;
+            }
+            ServiceHandler handler = mServiceHandler[i];
+            if (handler != null && handler.isRetired() && !mHandlerPending[i]) {
+                CatLog.d(this, "Restoring ServiceHandler for slot: " + i);
+                startServiceHandler(i);
+            } else if (handler == null && !mHandlerPending[i] && i == slotId
+                    && isCardlessOp(opCode)) {
+                // The other slots without a handler never had a card, the broadcast ops
+                // have nothing to do there beyond checkAndUnInstallStkApps().
+                CatLog.d(this, "Creating ServiceHandler for slot: " + i + ", op " + opCode);
+                startServiceHandler(i);
+            }
+            if (mHandlerPending[i]) {
+                ready = false;
+            }
+        }
+        return ready;
+    }
+
+    /*
+     * Starts bringing up the handler of a slot. The handler is created at once
+     * if the slot's looper is running, else as soon as it is ready.
+     */
+    private void startServiceHandler(int slotId) {
+        mHandlerPending[slotId] = true;
+        if (mLooperPool.acquire(slotId) != null) {
+            finishServiceHandler(slotId);
+        }
+    }
+
+    private void finishServiceHandler(int slotId) {
+        Looper looper = mLooperPool.getLooper(slotId);
+        if (looper == null) {
+            return;
+        }
+        // Slots share the pool's loopers, each slot keeps its own FIFO order.
+        // A retired handler hands its state over to the new one.
+        mServiceHandler[slotId] = new ServiceHandler(looper, slotId, mServiceHandler[slotId]);
+        mHandlerPending[slotId] = false;
+    }
+
+    /*
+     * Must be called with mHandlerLock held, after prepareServiceHandlers()
+     * returned true for the intent.
+     */
+    private void dispatchToHandler(int slotId, Bundle args) {
+        ServiceHandler handler = mServiceHandler[slotId];
+        if (handler == null) {
+            CatLog.d(this, "No ServiceHandler for slot: " + slotId + ", ignoring op "
+                    + args.getInt(OPCODE));
+            return;
+        }
+
+        Message msg = handler.obtainMessage();
         msg.arg1 = args.getInt(OPCODE);
         CatLog.d(this,  msg.arg1+ "called on slot:"+ slotId);
 
         switch(msg.arg1) {
         case OP_CMD:
             msg.obj = args.getParcelable(CMD_MSG);
+            mLatencyTracker[slotId].onReceived((CatCmdMessage) msg.obj,
+                    args.getLong(RECEIVE_TIME, SystemClock.elapsedRealtimeNanos()));
+            if (msg.obj != null && ((CatCmdMessage) msg.obj).getCmdType() != null) {
+                mHistory[slotId].add(StkHistory.KIND_CMD,
+                        ((CatCmdMessage) msg.obj).getCmdType().name(), null);
+            }
             break;
         case OP_RESPONSE:
+            msg.obj = StkResponse.fromBundle(args);
+            break;
         case OP_CARD_STATUS_CHANGED:
         case OP_ALPHA_NOTIFY:
             msg.obj = args;
@@ -250,11 +681,12 @@ public class StkAppService extends Service {
         case OP_BOOT_COMPLETED:
             //Broadcast this event to other slots.
             for (int i = 0; i < mSimCount; i++) {
-                if ((i != slotId) && (mServiceHandler[i] != null)) {
-                    Message tmpmsg = mServiceHandler[i].obtainMessage();
+                ServiceHandler other = (i != slotId) ? mServiceHandler[i] : null;
+                if (other != null) {
+                    Message tmpmsg = other.obtainMessage();
                     tmpmsg.arg1 = msg.arg1;
                     tmpmsg.obj = msg.obj;
-                    mServiceHandler[i].sendMessage(tmpmsg);
+                    other.sendMessage(tmpmsg);
                 }
             }
             break;
@@ -268,14 +700,14 @@ public class StkAppService extends Service {
         default:
             return;
         }
-        mServiceHandler[slotId].sendMessage(msg);
+        handler.sendMessage(msg);
     }
 
     private void checkAndUnInstallStkApps() {
         for (int i = 0; i < mSimCount; i++) {
             if (mStkService[i] == null) {
                 CatLog.d(this, " Unistalling Stk App for slot: " + i);
-                StkAppInstaller.unInstall(mContext, i);
+                scheduleUnInstall(i, false);
             }
         }
     }
@@ -288,38 +720,262 @@ public class StkAppService extends Service {
                 break;
             }
         }
+        // Stay for the pending uninstalls, their expiry checks again.
+        synchronized (mUninstallLock) {
+            for (int i = 0; i < mSimCount; i++) {
+                if (mUninstallPending[i]) {
+                    stopServiceRequired = false;
+                    break;
+                }
+            }
+        }
         return stopServiceRequired;
     }
 
-    private void InitHandlerThread() {
-        for (int i = 0; i < mSimCount; i++) {
-            mHandlerThread[i] = new HandlerThread("ServiceHandler" + i);
-            mHandlerThread[i].start();
-            // Get the HandlerThread's Looper and use it for our Handler
-            mServiceHandler[i] = new ServiceHandler(mHandlerThread[i].getLooper(), i);
+    /*
+     * Uninstalls the launcher of the slot, and deletes its menu snapshot if asked to,
+     * once the grace window passed. A launcher which is not installed is uninstalled
+     * right away, the window only protects a menu the card may send again. The first
+     * deadline holds if the card keeps going away within the window.
+     */
+    private void scheduleUnInstall(int slotId, boolean deleteSnapshot) {
+        if (mUninstallGrace <= 0 || !StkAppInstaller.isInstalled(slotId)) {
+            StkAppInstaller.unInstall(mContext, slotId);
+            if (deleteSnapshot) {
+                deleteMenuSnapshot(slotId);
+            }
+            return;
+        }
+        synchronized (mUninstallLock) {
+            mUninstallDeletesSnapshot[slotId] |= deleteSnapshot;
+            if (mUninstallPending[slotId]) {
+                return;
+            }
+            mUninstallPending[slotId] = true;
+        }
+        CatLog.d(this, "Uninstalling slot " + slotId + " in " + mUninstallGrace + "ms");
+        mMainHandler.postDelayed(mUninstallExpiry[slotId], mUninstallGrace);
+    }
+
+    // Called once the card of the slot is back with its menu.
+    private void cancelUnInstall(int slotId) {
+        synchronized (mUninstallLock) {
+            if (!mUninstallPending[slotId]) {
+                return;
+            }
+            mUninstallPending[slotId] = false;
+            mUninstallDeletesSnapshot[slotId] = false;
+        }
+        CatLog.d(this, "Card of slot " + slotId + " is back, keeping its launcher");
+        mMainHandler.removeCallbacks(mUninstallExpiry[slotId]);
+    }
+
+    // Runs on the main thread when the window passes, and from onDestroy().
+    private void onUnInstallGraceExpired(int slotId) {
+        boolean deleteSnapshot;
+        synchronized (mUninstallLock) {
+            if (!mUninstallPending[slotId]) {
+                return;
+            }
+            mUninstallPending[slotId] = false;
+            deleteSnapshot = mUninstallDeletesSnapshot[slotId];
+            mUninstallDeletesSnapshot[slotId] = false;
+        }
+        CatLog.d(this, "Grace window passed, uninstalling slot " + slotId);
+        StkAppInstaller.unInstall(mContext, slotId);
+        if (deleteSnapshot) {
+            deleteMenuSnapshot(slotId);
+        }
+    }
+
+    // Snapshots are kept by ICCID, the menus of a replay must not end up in them.
+    private void saveMenuSnapshot(int slotId, CatCmdMessage setUpMenu) {
+        if (!mReplayer.isReplaying(slotId)) {
+            StkMenuSnapshot.save(mContext, slotId, setUpMenu);
+        }
+    }
+
+    private void deleteMenuSnapshot(int slotId) {
+        if (!mReplayer.isReplaying(slotId)) {
+            StkMenuSnapshot.delete(mContext, slotId);
         }
     }
 
     private void updateCatService(int slotId) {
-        if (TelephonyManager.getDefault().hasIccCard(slotId) && mStkService[slotId] == null) {
+        if (mCatServiceOverride[slotId] != null) {
+            mStkService[slotId] = mCatServiceOverride[slotId];
+        } else if (mStkService[slotId] == null) {
             try {
-                mStkService[slotId] = CatServiceFactory.getCatService(slotId);
+                mStkService[slotId] = mCatBackend.getCatService(slotId);
                 CatLog.d(this, "CatService instance for subscription " + slotId + " is : "
                         + mStkService[slotId]);
             } catch (Exception ex) {
                 CatLog.d(this, "UICC Interface not ready yet.");
             }
         }
+        // The handler of a slot is only created once a card shows up on it.
+        synchronized (mHandlerLock) {
+            if (mStkService[slotId] != null && mServiceHandler[slotId] == null
+                    && !mHandlerPending[slotId]) {
+                CatLog.d(this, "Creating ServiceHandler for slot: " + slotId);
+                startServiceHandler(slotId);
+            }
+        }
+    }
+
+    /*
+     * Replaces the CatService of a slot, or goes back to the real one when
+     * service is null. Must be called on the main thread.
+     */
+    void setCatServiceOverride(int slotId, AppInterface service) {
+        mCatServiceOverride[slotId] = service;
+        mStkService[slotId] = null;
+        updateCatService(slotId);
+    }
+
+    /*
+     * Returns true if a card, or the simulator, serves the slot. Main thread only.
+     */
+    boolean hasCatService(int slotId) {
+        updateCatService(slotId);
+        return mStkService[slotId] != null && mCatServiceOverride[slotId] == null;
+    }
+
+    /*
+     * Debug commands taken by dump():
+     *   --record start|stop [file]    records the requests, see StkRecorder
+     *   --replay file [speed]|stop    replays a recording, see StkReplayer
+     *   --sim, --conformance, --bench taken by the StkDebugBackend, if this build
+     *                                 has one, see StkSimulator
+     * The default file is stk_record.bin in the files directory, the default
+     * speed 1.0, 0 replays back to back.
+     * Returns false for other arguments.
+     */
+    private boolean handleDebugCommand(PrintWriter pw, String[] args) {
+        String arg = (args.length > 1) ? args[1] : null;
+        try {
+            if ("--record".equals(args[0]) && "start".equals(arg)) {
+                mRecorder = new StkRecorder();
+                pw.println("Recording started");
+            } else if ("--record".equals(args[0]) && "stop".equals(arg)) {
+                stopRecording(pw, getDebugFile(args));
+            } else if ("--replay".equals(args[0]) && "stop".equals(arg)) {
+                mReplayer.stop();
+                pw.println("Replay stopped");
+            } else if ("--replay".equals(args[0])) {
+                float speed = (args.length > 2) ? Float.parseFloat(args[2]) : 1.0f;
+                pw.println(mReplayer.start(getDebugFile(args), speed)
+                        ? "Replay started" : "Replay already running");
+            } else if (mDebugBackend != null && mDebugBackend.handleDebugCommand(pw, args)) {
+                // Taken by the simulator.
+            } else if ("--sim".equals(args[0]) || "--conformance".equals(args[0])
+                    || "--bench".equals(args[0])) {
+                pw.println("Simulator not enabled, set " + STK_BACKEND_SYSPROP + "="
+                        + STK_BACKEND_SIM + " and restart the phone process");
+            } else {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            pw.println("Invalid number: " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Returns null if this build has no debug backend, debug/src is left out of user builds.
+    private static StkDebugBackend loadDebugBackend(Context context, int slotCount) {
+        try {
+            Constructor<?> constructor = Class.forName(StkDebugBackend.CLASS_NAME)
+                    .getDeclaredConstructor(Context.class, int.class);
+            return (StkDebugBackend) constructor.newInstance(context, slotCount);
+        } catch (ReflectiveOperationException e) {
+            CatLog.e("StkAppService", "No SIM simulator in this build: " + e);
+            return null;
+        }
+    }
+
+    private File getDebugFile(String[] args) {
+        int index = "--record".equals(args[0]) ? 2 : 1;
+        return (args.length > index) ? new File(args[index])
+                : new File(getFilesDir(), STK_RECORD_FILE);
+    }
+
+    private void stopRecording(PrintWriter pw, File file) {
+        StkRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder == null) {
+            pw.println("Not recording");
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(recorder.toByteArray());
+            pw.println("Recorded " + recorder.getCount() + " requests to " + file
+                    + ", skipped " + recorder.getSkipped());
+        } catch (IOException e) {
+            pw.println("Failed to write " + file + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void dumpJournal(PrintWriter pw, String[] args) {
+        StkJournal journal = mJournal;
+        if (journal == null) {
+            pw.println("Journal not available");
+            return;
+        }
+        try {
+            int slotId = (args.length > 1) ? Integer.parseInt(args[1]) : -1;
+            for (int i = 0; i < mSimCount; i++) {
+                if (slotId < 0 || slotId == i) {
+                    journal.dump(pw, i);
+                }
+            }
+        } catch (NumberFormatException e) {
+            pw.println("Invalid number: " + e.getMessage());
+        }
+    }
+
+    int getQueueDepth(int slotId) {
+        ServiceHandler handler = mServiceHandler[slotId];
+        return (handler != null) ? handler.mCmdsQ.size() : 0;
+    }
+
+    StkLatencyTracker getLatencyTracker(int slotId) {
+        return mLatencyTracker[slotId];
+    }
+
+    void resetLatencyTrackers() {
+        for (int i = 0; i < mSimCount; i++) {
+            mLatencyTracker[i].reset();
+        }
     }
 
     @Override
     public void onDestroy() {
-        waitForLooper();
+        // Drops the pending early intent drain and replay steps.
+        mMainHandler.removeCallbacksAndMessages(null);
+        // Nobody is left to wait for the cards, apply the pending uninstalls.
         for (int i = 0; i < mSimCount; i++) {
-            if (mHandlerThread[i] != null) {
-                mHandlerThread[i].quit();
+            onUnInstallGraceExpired(i);
+        }
+        synchronized (mHandlerLock) {
+            // Nobody will dispatch the buffered commands, answer them now.
+            while (!mEarlyIntents.isEmpty()) {
+                answerEarlyCmd(mEarlyIntents.pollFirst());
             }
         }
+        mLooperPool.quit();
+        if (mDebugBackend != null) {
+            mDebugBackend.quit();
+        }
         sInstance = null;
     }
 
@@ -328,18 +984,126 @@ public class StkAppService extends Service {
         return null;
     }
 
+    /*
+     * dumpsys activity service com.android.stk/.StkAppService [--compact|--journal [slot]]
+     * The compact form prints one "<record> key=value ..." line per record,
+     * --journal the StkJournal records of one or all slots.
+     * Debuggable builds also take the commands of handleDebugCommand().
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        boolean compact = false;
+        if (args != null && args.length > 0) {
+            if (Build.IS_DEBUGGABLE && handleDebugCommand(pw, args)) {
+                return;
+            }
+            if ("--journal".equals(args[0])) {
+                dumpJournal(pw, args);
+                return;
+            }
+            compact = "--compact".equals(args[0]);
+        }
+        long now = SystemClock.uptimeMillis();
+        int earlyIntents;
+        synchronized (mHandlerLock) {
+            earlyIntents = mEarlyIntents.size();
+        }
+        StkRecorder recorder = mRecorder;
+        String replayReport = mReplayer.getReport();
+        if (compact) {
+            pw.println("service sims=" + mSimCount + " stopping=" + mStopping
+                    + " intent_requests=" + mIntentRequestCount
+                    + " direct_requests=" + mDirectRequestCount
+                    + " direct_responses=" + mDirectResponseCount
+                    + " direct_launches=" + mDirectLaunchCount
+                    + " workers=" + mLooperPool.getWorkerCount()
+                    + " early_intents=" + earlyIntents
+                    + " payloads=" + StkPayloadRegistry.size());
+        } else {
+            pw.println("StkAppService:");
+            pw.println("  sims=" + mSimCount + " stopping=" + mStopping
+                    + " workers=" + mLooperPool.getWorkerCount()
+                    + " earlyIntents=" + earlyIntents);
+            pw.println("  requests: intent=" + mIntentRequestCount
+                    + " direct=" + mDirectRequestCount
+                    + " directResponses=" + mDirectResponseCount
+                    + " directLaunches=" + mDirectLaunchCount);
+            StkPayloadRegistry.dump(pw);
+            StkIconCache.dump(pw);
+            StkAppInstaller.dump(pw);
+            synchronized (mUninstallLock) {
+                pw.println("  uninstall: grace=" + mUninstallGrace + "ms pending="
+                        + Arrays.toString(mUninstallPending));
+            }
+            if (recorder != null) {
+                pw.println("  recording: requests=" + recorder.getCount()
+                        + " skipped=" + recorder.getSkipped());
+            }
+            if (replayReport != null) {
+                pw.println("  replay" + (mReplayer.isRunning() ? " (running)" : "") + ": "
+                        + replayReport);
+            }
+        }
+        if (mDebugBackend != null) {
+            mDebugBackend.dump(pw, compact);
+        }
+        for (int i = 0; i < mSimCount; i++) {
+            ServiceHandler handler = mServiceHandler[i];
+            String state;
+            synchronized (mHandlerLock) {
+                if (mHandlerPending[i]) {
+                    state = "pending";
+                } else if (handler == null) {
+                    state = "none";
+                } else {
+                    state = handler.isRetired() ? "retired" : "live";
+                }
+            }
+            if (compact) {
+                pw.println("handler slot=" + i + " state=" + state
+                        + " cat_service=" + (mStkService[i] != null));
+                if (handler != null) {
+                    handler.dumpCompact(pw, now);
+                }
+                pw.println("looper slot=" + i
+                        + " avg_delay_ms=" + mLooperPool.getAverageQueueDelay(i)
+                        + " max_delay_ms=" + mLooperPool.getMaxQueueDelay(i));
+                mLatencyTracker[i].dumpCompact(pw, i);
+                mHistory[i].dumpCompact(pw, i);
+            } else {
+                pw.println("  Slot " + i + ": handler=" + state
+                        + " catService=" + (mStkService[i] != null));
+                if (handler != null) {
+                    handler.dump(pw, "    ", now);
+                }
+                pw.println("    looper: avgDelay=" + mLooperPool.getAverageQueueDelay(i)
+                        + "ms maxDelay=" + mLooperPool.getMaxQueueDelay(i) + "ms");
+                pw.println("    latency:");
+                mLatencyTracker[i].dump(pw, "      ");
+                pw.println("    history:");
+                mHistory[i].dump(pw, "      ");
+            }
+        }
+    }
+
     /*
      * Package api used by StkMenuActivity to indicate if its on the foreground.
      */
     void indicateMenuVisibility(boolean visibility, int slotId) {
-        mServiceHandler[slotId].indicateMenuVisibility(visibility);
+        ServiceHandler handler = mServiceHandler[slotId];
+        if (handler != null) {
+            handler.indicateMenuVisibility(visibility);
+        }
     }
 
     /*
      * Package api used by StkDialogActivity to indicate if its on the foreground.
      */
     void setDisplayTextDlgVisibility(boolean visibility, int slotId) {
-        mServiceHandler[slotId].setDisplayTextDlgVisibility(visibility);
+        ServiceHandler handler = mServiceHandler[slotId];
+        if (handler != null) {
+            handler.setDisplayTextDlgVisibility(visibility);
+        }
     }
 
     /*
@@ -347,7 +1111,8 @@ public class StkAppService extends Service {
      */
     Menu getMenu(int slotId) {
         CatLog.d(this, "Menu on "+ slotId+ " selected");
-        return mServiceHandler[slotId].getMainMenu();
+        ServiceHandler handler = mServiceHandler[slotId];
+        return (handler != null) ? handler.getMainMenu() : null;
     }
 
     /*
@@ -358,20 +1123,84 @@ public class StkAppService extends Service {
         return sInstance;
     }
 
-    private void waitForLooper() {
-        while (mServiceHandler == null) {
-            synchronized (this) {
-                try {
-                    wait(100);
-                } catch (InterruptedException e) {
-                }
+    /*
+     * Returns false for the commands which do not need any interaction with the
+     * user, their terminal response is sent by telephony.
+     */
+    static boolean isInteractive(AppInterface.CommandType type) {
+        switch (type) {
+        case SEND_DTMF:
+        case SEND_SMS:
+        case SEND_SS:
+        case SEND_USSD:
+        case SET_UP_IDLE_MODE_TEXT:
+        case SET_UP_MENU:
+        case REFRESH:
+        case CLOSE_CHANNEL:
+        case RECEIVE_DATA:
+        case SEND_DATA:
+        case SET_UP_EVENT_LIST:
+        case ACTIVATE:
+            return false;
+        }
+
+        return true;
+    }
+
+    // Commands this app sends the terminal response for, the card or telephony answer
+    // the others.
+    static boolean isAnsweredByApp(AppInterface.CommandType type) {
+        if (type == null) {
+            return false;
+        }
+        switch (type) {
+        case DISPLAY_TEXT:
+        case SELECT_ITEM:
+        case GET_INPUT:
+        case GET_INKEY:
+        case PLAY_TONE:
+        case SET_UP_CALL:
+        case LAUNCH_BROWSER:
+        case OPEN_CHANNEL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Result code for a queued command which expired before it could be shown.
+    static ResultCode getExpiredResultCode(AppInterface.CommandType type) {
+        switch (type) {
+        case SELECT_ITEM:
+        case GET_INPUT:
+        case GET_INKEY:
+        case SET_UP_CALL:
+        case LAUNCH_BROWSER:
+        case OPEN_CHANNEL:
+            return ResultCode.NO_RESPONSE_FROM_USER;
+        default:
+            return ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS;
+        }
+    }
+
+    // Returns true if the event is in the list of the last SET UP EVENT LIST.
+    static boolean isEventListed(SetupEventListSettings settings, int event) {
+        if (settings == null || settings.eventList == null) {
+            return false;
+        }
+        for (int i : settings.eventList) {
+            if (event == i) {
+                return true;
             }
         }
+        return false;
     }
 
     private final class ServiceHandler extends Handler {
         private CatCmdMessage mMainCmd = null;
         private CatCmdMessage mCurrentCmd = null;
+        // Last command from the card, the current one of CatService.
+        private CatCmdMessage mLastCmd = null;
         private Menu mCurrentMenu = null;
         private String lastSelectedItem = null;
         private boolean responseNeeded = true;
@@ -379,18 +1208,32 @@ public class StkAppService extends Service {
         private boolean launchBrowser = false;
         private BrowserSettings mBrowserSettings = null;
         private SetupEventListSettings mSetupEventListSettings = null;
-        private LinkedList<DelayedCmd> mCmdsQ = new LinkedList<DelayedCmd>();
+        private StkCmdQueue mCmdsQ;
         private CatCmdMessage mCurrentSetupEventCmd = null;
         private CatCmdMessage mIdleModeTextCmd = null;
         private boolean mIsDisplayTextPending = false;
         private boolean mScreenIdle = true;
         private Menu mMainMenu = null;
+        // Item id index of the last menu looked up or compared.
+        private StkMenuDiff.Index mMenuIndex = null;
+        // Menus the card sent again unchanged.
+        private int mMenuDiffSkipCount = 0;
         private int mCurrentSlotId = TelephonyManager.getDefault().getDefaultSim();
         private boolean mClearSelectItem = false;
         private boolean mDisplayTextDlgIsVisibile = false;
         private boolean mMenuIsVisibile = false;
         private TonePlayer mTonePlayer = null;
         private Vibrator mVibrator = null;
+        // Set once the handler released its looper after being idle.
+        private volatile boolean mRetired = false;
+        // Uptime until which DISPLAY TEXT commands are held back after a browser launch.
+        private long mBrowserHoldUntil = 0;
+        private int mHeldDisplayTextCount = 0;
+        private long mHeldDisplayTextTime = 0;
+        // Set while the main menu comes from StkMenuSnapshot, until the card sends SET UP MENU.
+        private boolean mMainMenuFromSnapshot = false;
+        // Set once StkMenuSnapshot was looked up for the card in the slot.
+        private boolean mSnapshotChecked = false;
 
         // message id for time out
         private static final int MSG_ID_TIMEOUT = 1;
@@ -417,32 +1260,173 @@ public class StkAppService extends Service {
                     .obtainMessage(MSG_ID_TIMEOUT), StkApp.SELECT_ITEM_TIMEOUT);
         }
 
-        // Inner class used for queuing telephony messages (proactive commands,
-        // session end) while the service is busy processing a previous message.
-        private class DelayedCmd {
-            // members
-            int id;
-            CatCmdMessage msg;
+        public ServiceHandler(Looper looper, int slotId, ServiceHandler retired) {
+            super(looper);
+            // Queue for telephony messages (proactive commands, session end)
+            // received while the service is busy processing a previous message.
+            mCmdsQ = new StkCmdQueue(mCmdQueueSize);
+            mCurrentSlotId = slotId;
+            if (retired != null) {
+                restoreState(retired);
+            } else {
+                // Runs before any request dispatched to the new handler.
+                post(new Runnable() {
+                    public void run() {
+                        restoreMenuSnapshot();
+                    }
+                });
+            }
+        }
 
-            DelayedCmd(int id, CatCmdMessage msg) {
-                this.id = id;
-                this.msg = msg;
+        // Takes over the state a retired handler of the same slot kept while idle.
+        private void restoreState(ServiceHandler retired) {
+            mMainCmd = retired.mMainCmd;
+            mCurrentCmd = retired.mCurrentCmd;
+            mCurrentMenu = retired.mCurrentMenu;
+            lastSelectedItem = retired.lastSelectedItem;
+            mBrowserSettings = retired.mBrowserSettings;
+            mSetupEventListSettings = retired.mSetupEventListSettings;
+            mCurrentSetupEventCmd = retired.mCurrentSetupEventCmd;
+            mIdleModeTextCmd = retired.mIdleModeTextCmd;
+            mScreenIdle = retired.mScreenIdle;
+            mMainMenu = retired.mMainMenu;
+            mMenuIsVisibile = retired.mMenuIsVisibile;
+            mDisplayTextDlgIsVisibile = retired.mDisplayTextDlgIsVisibile;
+            mMainMenuFromSnapshot = retired.mMainMenuFromSnapshot;
+            mSnapshotChecked = retired.mSnapshotChecked;
+            mClearSelectItem = retired.mClearSelectItem;
+            responseNeeded = retired.responseNeeded;
+            mBrowserHoldUntil = retired.mBrowserHoldUntil;
+            mLastCmd = retired.mLastCmd;
+        }
+
+        /*
+         * Takes the main menu from StkMenuSnapshot while the card did not send
+         * SET UP MENU yet. Tried again on card status changes until the ICCID
+         * of the card is known.
+         */
+        private void restoreMenuSnapshot() {
+            if (mMainCmd != null || mSnapshotChecked) {
+                return;
+            }
+            if (StkMenuSnapshot.getIccId(mCurrentSlotId) == null) {
+                return;
             }
+            mSnapshotChecked = true;
+            CatCmdMessage cmd = StkMenuSnapshot.load(mContext, mCurrentSlotId);
+            if (cmd == null) {
+                return;
+            }
+            CatLog.d(this, "Restored main menu of slot " + mCurrentSlotId + " from snapshot");
+            StkIconCache.intern(mContext, cmd);
+            cancelUnInstall(mCurrentSlotId);
+            mMainCmd = cmd;
+            mCurrentCmd = cmd;
+            mCurrentMenu = cmd.getMenu();
+            mMainMenu = mCurrentMenu;
+            mMainMenuFromSnapshot = true;
+            StkAppInstaller.install(mContext, mCurrentSlotId);
         }
 
-        public ServiceHandler(Looper looper, int slotId) {
-            super(looper);
-            mCmdsQ = new LinkedList<DelayedCmd>();
-            mCurrentSlotId = slotId;
+        boolean isRetired() {
+            return mRetired;
+        }
+
+        /*
+         * Called on the dumpsys binder thread, the state is only read.
+         */
+        void dump(PrintWriter pw, String prefix, long now) {
+            pw.println(prefix + "cmdInProgress=" + mCmdInProgress
+                    + " displayTextPending=" + mIsDisplayTextPending
+                    + " launchBrowser=" + launchBrowser + " screenIdle=" + mScreenIdle);
+            pw.println(prefix + "menuVisible=" + mMenuIsVisibile
+                    + " displayTextVisible=" + mDisplayTextDlgIsVisibile
+                    + " tonePlaying=" + (mTonePlayer != null));
+            pw.println(prefix + "currentCmd=" + describe(mCurrentCmd)
+                    + " mainCmd=" + describe(mMainCmd)
+                    + (mMainMenuFromSnapshot ? " (snapshot)" : "")
+                    + " currentMenu=" + (mCurrentMenu != null ? mCurrentMenu.title : null)
+                    + " unchangedMenus=" + mMenuDiffSkipCount);
+            pw.println(prefix + "timeouts: selectItem="
+                    + mTimeoutHandler.hasMessages(MSG_ID_TIMEOUT)
+                    + " stopTone=" + hasMessages(STOP_TONE_WHAT)
+                    + " idleCheck=" + hasMessages(IDLE_CHECK_WHAT)
+                    + " browserHold=" + Math.max(0, mBrowserHoldUntil - now) + "ms");
+            pw.println(prefix + "heldDisplayText: count=" + mHeldDisplayTextCount
+                    + " time=" + mHeldDisplayTextTime + "ms");
+            pw.println(prefix + "queue:");
+            mCmdsQ.dump(pw, prefix + "  ", now);
+        }
+
+        void dumpCompact(PrintWriter pw, long now) {
+            pw.println("state slot=" + mCurrentSlotId
+                    + " in_progress=" + mCmdInProgress
+                    + " display_text_pending=" + mIsDisplayTextPending
+                    + " launch_browser=" + launchBrowser + " screen_idle=" + mScreenIdle
+                    + " menu_visible=" + mMenuIsVisibile
+                    + " display_text_visible=" + mDisplayTextDlgIsVisibile
+                    + " tone_playing=" + (mTonePlayer != null)
+                    + " current_cmd=" + describe(mCurrentCmd)
+                    + " main_cmd=" + describe(mMainCmd)
+                    + " main_menu_snapshot=" + mMainMenuFromSnapshot
+                    + " select_item_timeout=" + mTimeoutHandler.hasMessages(MSG_ID_TIMEOUT)
+                    + " stop_tone_pending=" + hasMessages(STOP_TONE_WHAT)
+                    + " browser_hold_ms=" + Math.max(0, mBrowserHoldUntil - now)
+                    + " held_display_text=" + mHeldDisplayTextCount);
+            mCmdsQ.dumpCompact(pw, mCurrentSlotId, now);
+        }
+
+        private String describe(CatCmdMessage cmd) {
+            return (cmd == null || cmd.getCmdType() == null) ? "-" : cmd.getCmdType().name();
+        }
+
+        private boolean isIdle() {
+            return !mCmdInProgress && mCmdsQ.size() == 0 && mTonePlayer == null
+                    && !launchBrowser && !mIsDisplayTextPending && !mMenuIsVisibile
+                    && !mDisplayTextDlgIsVisibile
+                    && !mTimeoutHandler.hasMessages(MSG_ID_TIMEOUT);
+        }
+
+        private void scheduleIdleCheck() {
+            if (mIdleTimeout <= 0) {
+                return;
+            }
+            removeMessages(IDLE_CHECK_WHAT);
+            Message msg = obtainMessage(IDLE_CHECK_WHAT);
+            msg.arg1 = OP_IDLE_CHECK;
+            sendMessageDelayed(msg, mIdleTimeout);
+        }
+
+        // Releases the looper of the slot if nothing happened on it for a while.
+        // The state is kept in this object and taken over by the next handler.
+        private void retireIfIdle() {
+            synchronized (mHandlerLock) {
+                if (!isIdle() || hasMessages(0) || hasMessages(STOP_TONE_WHAT)) {
+                    scheduleIdleCheck();
+                    return;
+                }
+                CatLog.d(this, "Retiring idle ServiceHandler for slot: " + mCurrentSlotId);
+                mRetired = true;
+                mLooperPool.release(mCurrentSlotId);
+            }
         }
 
         @Override
         public void handleMessage(Message msg) {
             int opcode = msg.arg1;
 
+            mLooperPool.recordQueueDelay(mCurrentSlotId,
+                    SystemClock.uptimeMillis() - msg.getWhen());
+            if (opcode == OP_IDLE_CHECK) {
+                retireIfIdle();
+                return;
+            }
+            scheduleIdleCheck();
+
             switch (opcode) {
             case OP_LAUNCH_APP:
                 CatLog.d(this, "OP_LAUNCH_APP");
+                restoreMenuSnapshot();
                 if (mMainCmd == null) {
                     // nothing todo when no SET UP MENU command didn't arrive.
                     return;
@@ -451,6 +1435,10 @@ public class StkAppService extends Service {
                 break;
             case OP_CMD:
                 CatCmdMessage cmdMsg = (CatCmdMessage) msg.obj;
+                mLastCmd = cmdMsg;
+                if (holdDisplayText(cmdMsg, OP_CMD)) {
+                    break;
+                }
                 //Cancel the timer if it is set.
                 cancelTimeOut();
 
@@ -469,13 +1457,22 @@ public class StkAppService extends Service {
                         mCmdInProgress = true;
                         handleCmd((CatCmdMessage) msg.obj);
                     } else {
-                        mCmdsQ.addLast(new DelayedCmd(OP_CMD,
-                                (CatCmdMessage) msg.obj));
+                        CatCmdMessage superseded = mCmdsQ.supersede(cmdMsg);
+                        if (superseded != null) {
+                            CatLog.d(this, "Queued " + superseded.getCmdType().name()
+                                    + " superseded");
+                            dropCmd(superseded, null);
+                        }
+                        if (!mCmdsQ.offer(OP_CMD, cmdMsg, SystemClock.uptimeMillis())) {
+                            CatLog.d(this, "Command queue full, " + cmdMsg.getCmdType().name()
+                                    + " not queued");
+                            dropCmd(cmdMsg, ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS);
+                        }
                     }
                 }
                 break;
             case OP_RESPONSE:
-                    handleCmdResponse((Bundle) msg.obj);
+                    handleCmdResponse((StkResponse) msg.obj);
                 // call delayed commands if needed.
                 if (mCmdsQ.size() != 0) {
                     callDelayedMsg();
@@ -489,14 +1486,16 @@ public class StkAppService extends Service {
                 if (!mCmdInProgress) {
                     mCmdInProgress = true;
                     handleSessionEnd();
-                } else {
-                    mCmdsQ.addLast(new DelayedCmd(OP_END_SESSION, null));
+                } else if (!mCmdsQ.offer(OP_END_SESSION, null, SystemClock.uptimeMillis())) {
+                    CatLog.d(this, "Command queue full, session end not queued");
                 }
                 break;
             case OP_BOOT_COMPLETED:
                 CatLog.d(this, "OP_BOOT_COMPLETED");
+                restoreMenuSnapshot();
                 if (mMainCmd == null) {
-                    StkAppInstaller.unInstall(mContext, mCurrentSlotId);
+                    // The card may still send its menu while it boots.
+                    scheduleUnInstall(mCurrentSlotId, false);
                 }
                 break;
             case OP_DELAYED_MSG:
@@ -534,8 +1533,9 @@ public class StkAppService extends Service {
             CatLog.d(this, "CardStatus: " + cardStatus);
             if (cardStatus == false) {
                 CatLog.d(this, "CARD is ABSENT");
-                // Uninstall STKAPP, Clear Idle text, Menu related variables.
-                StkAppInstaller.unInstall(mContext, mCurrentSlotId);
+                // Uninstall STKAPP after the grace window, Clear Idle text, Menu related
+                // variables.
+                scheduleUnInstall(mCurrentSlotId, false);
                 mNotificationManager.cancel(STK_NOTIFICATION_ID);
                 mStkService[mCurrentSlotId] = null;
                 cleanUp();
@@ -551,10 +1551,24 @@ public class StkAppService extends Service {
                 }
 
                 if (state.refreshResult == IccRefreshResponse.REFRESH_RESULT_RESET) {
-                    // Uninstall STkmenu
-                    StkAppInstaller.unInstall(mContext, mCurrentSlotId);
+                    // Uninstall STkmenu and drop its snapshot, unless the card sends
+                    // its menu again within the grace window.
+                    scheduleUnInstall(mCurrentSlotId, true);
+                    // The menu of the card before the reset is stale: the launcher
+                    // finds no menu, and selections are dropped with no command
+                    // to answer, until the card sends its menu again. A session in
+                    // progress keeps its command so it can still end.
+                    if (mCurrentCmd == mMainCmd) {
+                        mCurrentCmd = null;
+                    }
                     mCurrentMenu = null;
                     mMainCmd = null;
+                    mMainMenu = null;
+                    mMainMenuFromSnapshot = false;
+                    // The card sends its menu again after the reset.
+                    mSnapshotChecked = true;
+                } else {
+                    restoreMenuSnapshot();
                 }
             }
         }
@@ -595,12 +1609,13 @@ public class StkAppService extends Service {
         if (mCurrentCmd == null) {
             return;
         }
-        CatResponseMessage resMsg = new CatResponseMessage(mCurrentCmd);
+        StkResponseMessage resMsg = new StkResponseMessage(mCurrentCmd);
         CatLog.d(this, "SCREEN_BUSY");
         resMsg.setResultCode(ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS);
 
         checkAndUpdateCatService();
-        mStkService[mCurrentSlotId].onCmdResponse(resMsg);
+        onResponseSent(mCurrentCmd, ResultCode.TERMINAL_CRNTLY_UNABLE_TO_PROCESS, null);
+        sendToCard(mCurrentSlotId, resMsg);
         if (mCmdsQ.size() != 0) {
             callDelayedMsg();
         } else {
@@ -611,49 +1626,137 @@ public class StkAppService extends Service {
     private void sendResponse(int resId, int slotId, boolean confirm) {
         Message msg = this.obtainMessage();
         msg.arg1 = OP_RESPONSE;
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.RES_ID, resId);
-        args.putInt(StkAppService.SLOT_ID, slotId);
-        args.putBoolean(StkAppService.CONFIRMATION, confirm);
         CatLog.d(this, "sendResponse mCurrentSlotId: " + mCurrentSlotId );
-        msg.obj = args;
+        msg.obj = StkResponse.confirm(resId, slotId, confirm);
         this.sendMessage(msg);
     }
 
     private boolean isCmdInteractive(CatCmdMessage cmd) {
-        switch (cmd.getCmdType()) {
-        case SEND_DTMF:
-        case SEND_SMS:
-        case SEND_SS:
-        case SEND_USSD:
-        case SET_UP_IDLE_MODE_TEXT:
-        case SET_UP_MENU:
-        case REFRESH:
-        case CLOSE_CHANNEL:
-        case RECEIVE_DATA:
-        case SEND_DATA:
-        case SET_UP_EVENT_LIST:
-        case ACTIVATE:
+        return isInteractive(cmd.getCmdType());
+    }
+
+    /*
+     * While the browser started by LAUNCH BROWSER comes up, DISPLAY TEXT commands
+     * are posted again for the end of the hold time. Other commands keep flowing.
+     * Returns true if the command was held back.
+     */
+    private boolean holdDisplayText(CatCmdMessage cmdMsg, int opcode) {
+        if (cmdMsg == null || cmdMsg.getCmdType() != AppInterface.CommandType.DISPLAY_TEXT) {
             return false;
         }
-
+        long now = SystemClock.uptimeMillis();
+        if (now >= mBrowserHoldUntil) {
+            return false;
+        }
+        CatLog.d(this, "Holding DISPLAY TEXT for " + (mBrowserHoldUntil - now)
+                + " ms after browser launch");
+        mHeldDisplayTextCount++;
+        mHeldDisplayTextTime += mBrowserHoldUntil - now;
+        Message msg = this.obtainMessage();
+        msg.arg1 = opcode;
+        msg.obj = (opcode == OP_CMD) ? cmdMsg : null;
+        this.sendMessageAtTime(msg, mBrowserHoldUntil);
         return true;
     }
 
     private void handleDelayedCmd() {
+        long now = SystemClock.uptimeMillis();
+        // Commands which waited too long are answered without being shown.
+        while (mCmdsQ.size() != 0 && mCmdsQ.peekOp() == OP_CMD
+                && mCmdsQ.peekAge(now) > mCmdMaxAge) {
+            CatCmdMessage expired = mCmdsQ.peekCmd();
+            CatLog.d(this, "Queued " + expired.getCmdType().name() + " expired after "
+                    + mCmdsQ.peekAge(now) + " ms");
+            mCmdsQ.expire();
+            dropCmd(expired, getExpiredResultCode(expired.getCmdType()));
+        }
         if (mCmdsQ.size() != 0) {
-            DelayedCmd cmd = mCmdsQ.poll();
-            switch (cmd.id) {
+            if (mCmdsQ.peekOp() == OP_CMD && holdDisplayText(mCmdsQ.peekCmd(),
+                    OP_DELAYED_MSG)) {
+                return;
+            }
+            int op = mCmdsQ.peekOp();
+            CatCmdMessage cmd = mCmdsQ.peekCmd();
+            mCmdsQ.remove(now);
+            switch (op) {
             case OP_CMD:
-                handleCmd(cmd.msg);
+                handleCmd(cmd);
                 break;
             case OP_END_SESSION:
                 handleSessionEnd();
                 break;
             }
+        } else {
+            mCmdInProgress = false;
+        }
+    }
+
+
+    /*
+     * Accounts for a command taken out of the queue without being shown. It is
+     * answered with resultCode, if not null, only when the app answers its type
+     * and it is still the current command of CatService, which checks a terminal
+     * response against that one. The session in progress and its trace are left
+     * alone.
+     */
+    private void dropCmd(CatCmdMessage cmd, ResultCode resultCode) {
+        boolean answer = resultCode != null && cmd == mLastCmd
+                && isAnsweredByApp(cmd.getCmdType());
+        mLatencyTracker[mCurrentSlotId].retire(cmd);
+        journal(StkJournal.KIND_DROPPED, cmd, StkJournal.NONE, answer ? resultCode : null, -1);
+        mHistory[mCurrentSlotId].add(StkHistory.KIND_DROPPED, cmd.getCmdType().name(),
+                answer ? String.valueOf(resultCode) : "unanswered");
+        if (answer) {
+            StkResponseMessage resMsg = new StkResponseMessage(cmd);
+            resMsg.setResultCode(resultCode);
+            checkAndUpdateCatService();
+            sendToCard(mCurrentSlotId, resMsg);
+        }
+    }
+
+    // Hands a terminal response to the CatService of the slot, recording it if asked to.
+    private void sendToCard(int slotId, StkResponseMessage resMsg) {
+        StkRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordResponse(slotId, resMsg);
+        }
+        mStkService[slotId].onCmdResponse(resMsg);
+    }
+
+    private long trackStage(CatCmdMessage cmd, int stage) {
+        return mLatencyTracker[mCurrentSlotId].onStage(cmd, stage);
+    }
+
+    private void journal(int kind, CatCmdMessage cmd, int resId, ResultCode resultCode,
+            long detail) {
+        StkJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(mCurrentSlotId, kind, (cmd != null) ? cmd.getCmdType() : null,
+                    resId, resultCode, detail);
         }
     }
 
+    // Marks the start of an STK activity for the slot, see StkTrace.
+    private void traceActivityLaunch() {
+        StkTrace.beginUi(mCurrentSlotId);
+        trackStage(mCurrentCmd, StkLatencyTracker.STAGE_UI);
+    }
+
+    /*
+     * Accounts for a terminal response, response is null if the service
+     * answered the command on its own.
+     */
+    private void onResponseSent(CatCmdMessage cmd, ResultCode resultCode,
+            StkResponse response) {
+        long latency = trackStage(cmd, StkLatencyTracker.STAGE_RESPONSE);
+        journal(StkJournal.KIND_RESPONSE, cmd,
+                (response != null) ? response.resId : StkJournal.NONE, resultCode, latency);
+        StkTrace.endSession(mCurrentSlotId);
+        mHistory[mCurrentSlotId].add(StkHistory.KIND_RESPONSE,
+                (cmd != null && cmd.getCmdType() != null) ? cmd.getCmdType().name() : "-",
+                (response != null) ? response.toString() : String.valueOf(resultCode));
+    }
+
     private void callDelayedMsg() {
         Message msg = this.obtainMessage();
         msg.arg1 = OP_DELAYED_MSG;
@@ -661,6 +1764,7 @@ public class StkAppService extends Service {
     }
 
     private void handleSessionEnd() {
+        journal(StkJournal.KIND_SESSION_END, null, StkJournal.NONE, null, -1);
         mCurrentCmd = mMainCmd;
         lastSelectedItem = null;
         cancelTimeOut();
@@ -686,21 +1790,28 @@ public class StkAppService extends Service {
 
     // returns true if any Stk related activity already has focus on the screen
     private boolean isTopOfStack() {
-        ActivityManager mAcivityManager = (ActivityManager) mContext
-                .getSystemService(ACTIVITY_SERVICE);
-        String currentPackageName = mAcivityManager.getRunningTasks(1).get(0).topActivity
-                .getPackageName();
-        if (null != currentPackageName) {
-            return currentPackageName.equals(PACKAGE_NAME);
-        }
-
-        return false;
+        return StkForegroundTracker.isInForeground();
     }
 
     private void handleCmd(CatCmdMessage cmdMsg) {
+        StkTrace.beginCmd(cmdMsg);
+        try {
+            doHandleCmd(cmdMsg);
+        } finally {
+            StkTrace.end();
+        }
+        if (cmdMsg != null && !isAnsweredByApp(cmdMsg.getCmdType())) {
+            mLatencyTracker[mCurrentSlotId].retire(cmdMsg);
+        }
+    }
+
+    private void doHandleCmd(CatCmdMessage cmdMsg) {
+        long waited = trackStage(cmdMsg, StkLatencyTracker.STAGE_DEQUEUE);
         if (cmdMsg == null) {
             return;
         }
+        journal(StkJournal.KIND_CMD, cmdMsg, StkJournal.NONE, null, waited);
+        StkIconCache.intern(mContext, cmdMsg);
         // save local reference for state tracking.
         mCurrentCmd = cmdMsg;
         boolean waitForUsersResponse = true;
@@ -735,20 +1846,38 @@ public class StkAppService extends Service {
             }
             break;
         case SELECT_ITEM:
-            mCurrentMenu = cmdMsg.getMenu();
-            launchMenuActivity(cmdMsg.getMenu());
+            Menu selectMenu = cmdMsg.getMenu();
+            if (diffMenu(mCurrentMenu, selectMenu) == StkMenuDiff.IDENTICAL) {
+                // Hand the menu already shown to StkMenuActivity again, it has
+                // nothing to rebind then.
+                selectMenu = mCurrentMenu;
+            }
+            mCurrentMenu = selectMenu;
+            launchMenuActivity(selectMenu);
             break;
         case SET_UP_MENU:
+            cancelUnInstall(mCurrentSlotId);
+            // The installed menu, if any, the new one is compared with.
+            Menu previousMenu = mMainCmd != null ? mMainMenu : null;
             mMainCmd = mCurrentCmd;
             mCurrentMenu = cmdMsg.getMenu();
+            mMainMenuFromSnapshot = false;
             if (removeMenu()) {
                 CatLog.d(this, "Uninstall App");
                 mCurrentMenu = null;
                 mMainCmd = null;
                 StkAppInstaller.unInstall(mContext, mCurrentSlotId);
+                deleteMenuSnapshot(mCurrentSlotId);
+            } else if (diffMenu(previousMenu, mCurrentMenu) == StkMenuDiff.IDENTICAL) {
+                // Same menu resent, keep the installed app, snapshot and UI.
+                mCurrentMenu = previousMenu;
+                break;
             } else {
-                CatLog.d(this, "Install App");
-                StkAppInstaller.install(mContext, mCurrentSlotId);
+                if (previousMenu == null) {
+                    CatLog.d(this, "Install App");
+                    StkAppInstaller.install(mContext, mCurrentSlotId);
+                }
+                saveMenuSnapshot(mCurrentSlotId, cmdMsg);
             }
             mMainMenu = mCurrentMenu;
             if (mMenuIsVisibile) {
@@ -923,23 +2052,32 @@ public class StkAppService extends Service {
         }
     }
 
-    private void handleCmdResponse(Bundle args) {
+    private void handleCmdResponse(StkResponse response) {
+        StkTrace.begin("handleCmdResponse");
+        try {
+            doHandleCmdResponse(response);
+        } finally {
+            StkTrace.end();
+        }
+    }
+
+    private void doHandleCmdResponse(StkResponse response) {
         if (mCurrentCmd == null) {
             return;
         }
 
         checkAndUpdateCatService();
 
-        CatResponseMessage resMsg = new CatResponseMessage(mCurrentCmd);
+        StkResponseMessage resMsg = new StkResponseMessage(mCurrentCmd);
 
         // set result code
-        boolean helpRequired = args.getBoolean(HELP, false);
+        boolean helpRequired = response.help;
         boolean confirmed    = false;
 
-        switch(args.getInt(RES_ID)) {
+        switch(response.resId) {
         case RES_ID_MENU_SELECTION:
             CatLog.d(this, "RES_ID_MENU_SELECTION");
-            int menuSelection = args.getInt(MENU_SELECTION);
+            int menuSelection = response.menuSelection;
             switch(mCurrentCmd.getCmdType()) {
             case SET_UP_MENU:
             case SELECT_ITEM:
@@ -957,7 +2095,7 @@ public class StkAppService extends Service {
             break;
         case RES_ID_INPUT:
             CatLog.d(this, "RES_ID_INPUT");
-            String input = args.getString(INPUT);
+            String input = response.input;
             Input cmdInput = mCurrentCmd.geInput();
             if (cmdInput != null && cmdInput.yesNo) {
                 boolean yesNoSelection = input
@@ -975,7 +2113,7 @@ public class StkAppService extends Service {
             break;
         case RES_ID_CONFIRM:
             CatLog.d(this, "RES_ID_CONFIRM");
-            confirmed = args.getBoolean(CONFIRMATION);
+            confirmed = response.confirmed;
             switch (mCurrentCmd.getCmdType()) {
             case DISPLAY_TEXT:
                 if (confirmed) {
@@ -1030,7 +2168,7 @@ public class StkAppService extends Service {
             }
             break;
         case RES_ID_CHOICE:
-            int choice = args.getInt(CHOICE);
+            int choice = response.choice;
             CatLog.d(this, "User Choice=" + choice);
             switch (choice) {
                 case YES:
@@ -1052,11 +2190,12 @@ public class StkAppService extends Service {
             CatLog.d(this, "Unknown result id");
             return;
         }
-        int slotId = args.getInt(SLOT_ID);
+        int slotId = response.slotId;
         if (mStkService[slotId] != null) {
 
             CatLog.d(this, "CmdResponse sent on"+ slotId);
-            mStkService[slotId].onCmdResponse(resMsg);
+            onResponseSent(mCurrentCmd, resMsg.resultCode, response);
+            sendToCard(slotId, resMsg);
 
         } else {
             CatLog.d(this, "CmdResponse on wrong slotid");
@@ -1080,53 +2219,74 @@ public class StkAppService extends Service {
     }
 
     private void launchMenuActivity(Menu menu) {
-        Intent newIntent = new Intent(Intent.ACTION_VIEW);
-        newIntent.setClassName(PACKAGE_NAME, MENU_ACTIVITY_NAME);
-        int intentFlags = Intent.FLAG_ACTIVITY_NEW_TASK
-                | Intent.FLAG_ACTIVITY_CLEAR_TOP;
-        if (menu == null) {
-            // We assume this was initiated by the user pressing the tool kit icon
-            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.yes);
-
-            newIntent.putExtra("STATE", StkMenuActivity.STATE_MAIN);
-        } else {
-            // We don't know and we'll let getFlagActivityNoUserAction decide.
-            intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.unknown);
+        StkTrace.begin("launchMenuActivity");
+        try {
+            Intent newIntent = new Intent(Intent.ACTION_VIEW);
+            newIntent.setClassName(PACKAGE_NAME, MENU_ACTIVITY_NAME);
+            int intentFlags = Intent.FLAG_ACTIVITY_NEW_TASK
+                    | Intent.FLAG_ACTIVITY_CLEAR_TOP;
+            if (menu == null) {
+                // We assume this was initiated by the user pressing the tool kit icon
+                intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.yes);
+
+                newIntent.putExtra("STATE", StkMenuActivity.STATE_MAIN);
+            } else {
+                // We don't know and we'll let getFlagActivityNoUserAction decide.
+                intentFlags |= getFlagActivityNoUserAction(InitiatedByUserAction.unknown);
 
-            newIntent.putExtra("MENU", menu);
-            newIntent.putExtra("STATE", StkMenuActivity.STATE_SECONDARY);
+                newIntent.putExtra(StkPayloadRegistry.EXTRA_HANDLE,
+                        StkPayloadRegistry.put(mCurrentSlotId, menu));
+                newIntent.putExtra("STATE", StkMenuActivity.STATE_SECONDARY);
+            }
+            newIntent.putExtra(SLOT_ID, mCurrentSlotId);
+            newIntent.setFlags(intentFlags);
+            traceActivityLaunch();
+            mContext.startActivity(newIntent);
+        } finally {
+            StkTrace.end();
         }
-        newIntent.putExtra(SLOT_ID, mCurrentSlotId);
-        newIntent.setFlags(intentFlags);
-        mContext.startActivity(newIntent);
     }
 
     private void launchInputActivity() {
-        Intent newIntent = new Intent(Intent.ACTION_VIEW);
-        newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                            | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.setClassName(PACKAGE_NAME, INPUT_ACTIVITY_NAME);
-        newIntent.putExtra(SLOT_ID, mCurrentSlotId);
-        newIntent.putExtra("INPUT", mCurrentCmd.geInput());
-        mContext.startActivity(newIntent);
+        StkTrace.begin("launchInputActivity");
+        try {
+            Intent newIntent = new Intent(Intent.ACTION_VIEW);
+            newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
+            newIntent.setClassName(PACKAGE_NAME, INPUT_ACTIVITY_NAME);
+            newIntent.putExtra(SLOT_ID, mCurrentSlotId);
+            newIntent.putExtra(StkPayloadRegistry.EXTRA_HANDLE,
+                    StkPayloadRegistry.put(mCurrentSlotId, mCurrentCmd.geInput()));
+            traceActivityLaunch();
+            mContext.startActivity(newIntent);
+        } finally {
+            StkTrace.end();
+        }
     }
 
     private void launchTextDialog() {
-        Intent newIntent = new Intent(sInstance, StkDialogActivity.class);
-        newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                | Intent.FLAG_ACTIVITY_CLEAR_TOP
-                | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                | Intent.FLAG_ACTIVITY_NO_HISTORY
-                | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
-                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.putExtra(SLOT_ID, mCurrentSlotId);
-        newIntent.putExtra("TEXT", mCurrentCmd.geTextMessage());
-        startActivity(newIntent);
-        // For display texts with immediate response, send the terminal response
-        // immediately. responseNeeded will be false, if display text command has
-        // the immediate response tlv.
-        if (!mCurrentCmd.geTextMessage().responseNeeded) {
-            sendResponse(RES_ID_CONFIRM, mCurrentSlotId, true);
+        StkTrace.begin("launchTextDialog");
+        try {
+            Intent newIntent = new Intent(sInstance, StkDialogActivity.class);
+            newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                    | Intent.FLAG_ACTIVITY_CLEAR_TOP
+                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
+                    | Intent.FLAG_ACTIVITY_NO_HISTORY
+                    | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
+                    | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
+            newIntent.putExtra(SLOT_ID, mCurrentSlotId);
+            newIntent.putExtra(StkPayloadRegistry.EXTRA_HANDLE,
+                    StkPayloadRegistry.put(mCurrentSlotId, mCurrentCmd.geTextMessage()));
+            traceActivityLaunch();
+            startActivity(newIntent);
+            // For display texts with immediate response, send the terminal response
+            // immediately. responseNeeded will be false, if display text command has
+            // the immediate response tlv.
+            if (!mCurrentCmd.geTextMessage().responseNeeded) {
+                sendResponse(RES_ID_CONFIRM, mCurrentSlotId, true);
+            }
+        } finally {
+            StkTrace.end();
         }
     }
 
@@ -1138,29 +2298,25 @@ public class StkAppService extends Service {
             return;
         }
 
-        CatResponseMessage resMsg = new CatResponseMessage(mCurrentSetupEventCmd);
+        StkResponseMessage resMsg = new StkResponseMessage(mCurrentSetupEventCmd);
 
         resMsg.setResultCode(ResultCode.OK);
         resMsg.setEventDownload(event, addedInfo);
 
         checkAndUpdateCatService();
-        mStkService[mCurrentSlotId].onCmdResponse(resMsg);
+        journal(StkJournal.KIND_EVENT, mCurrentSetupEventCmd, StkJournal.NONE, ResultCode.OK,
+                event);
+        sendToCard(mCurrentSlotId, resMsg);
     }
 
     private void checkForSetupEvent(int event, Bundle args) {
-        boolean eventPresent = false;
         byte[] addedInfo = null;
         CatLog.d(this, "Event :" + event);
 
         if (mSetupEventListSettings != null) {
             /* Checks if the event is present in the EventList updated by last
              * SetupEventList Proactive Command */
-            for (int i : mSetupEventListSettings.eventList) {
-                 if (event == i) {
-                     eventPresent =  true;
-                     break;
-                 }
-            }
+            boolean eventPresent = isEventListed(mSetupEventListSettings, event);
 
             /* If Event is present send the response to ICC */
             if (eventPresent == true) {
@@ -1216,142 +2372,163 @@ public class StkAppService extends Service {
     }
 
     private void launchEventMessage(TextMessage msg) {
-        if (msg == null || msg.text == null) {
-            return;
-        }
-        Toast toast = new Toast(mContext.getApplicationContext());
-        LayoutInflater inflate = (LayoutInflater) mContext
-                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(R.layout.stk_event_msg, null);
-        TextView tv = (TextView) v
-                .findViewById(com.android.internal.R.id.message);
-        ImageView iv = (ImageView) v
-                .findViewById(com.android.internal.R.id.icon);
-        if (msg.icon != null) {
-            iv.setImageBitmap(msg.icon);
-        } else {
-            iv.setVisibility(View.GONE);
-        }
-        /* In case of 'self explanatory' stkapp should display the specified
-         * icon in proactive command (but not the alpha string).
-         * If icon is non-self explanatory and if the icon could not be displayed
-         * then alpha string or text data should be displayed
-         * Ref: ETSI 102.223,section 6.5.4
-         */
-        if (mCurrentCmd.hasIconLoadFailed() || msg.icon == null || !msg.iconSelfExplanatory) {
-            tv.setText(msg.text);
-        }
+        StkTrace.begin("launchEventMessage");
+        try {
+            if (msg == null || msg.text == null) {
+                return;
+            }
+            Toast toast = new Toast(mContext.getApplicationContext());
+            LayoutInflater inflate = (LayoutInflater) mContext
+                    .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            View v = inflate.inflate(R.layout.stk_event_msg, null);
+            TextView tv = (TextView) v
+                    .findViewById(com.android.internal.R.id.message);
+            ImageView iv = (ImageView) v
+                    .findViewById(com.android.internal.R.id.icon);
+            if (msg.icon != null) {
+                iv.setImageBitmap(msg.icon);
+            } else {
+                iv.setVisibility(View.GONE);
+            }
+            /* In case of 'self explanatory' stkapp should display the specified
+             * icon in proactive command (but not the alpha string).
+             * If icon is non-self explanatory and if the icon could not be displayed
+             * then alpha string or text data should be displayed
+             * Ref: ETSI 102.223,section 6.5.4
+             */
+            if (mCurrentCmd.hasIconLoadFailed() || msg.icon == null || !msg.iconSelfExplanatory) {
+                tv.setText(msg.text);
+            }
 
-        toast.setView(v);
-        toast.setDuration(Toast.LENGTH_LONG);
-        toast.setGravity(Gravity.BOTTOM, 0, 0);
-        toast.show();
+            toast.setView(v);
+            toast.setDuration(Toast.LENGTH_LONG);
+            toast.setGravity(Gravity.BOTTOM, 0, 0);
+            trackStage(mCurrentCmd, StkLatencyTracker.STAGE_UI);
+            toast.show();
+        } finally {
+            StkTrace.end();
+        }
     }
 
     private void launchConfirmationDialog(TextMessage msg) {
-        msg.title = lastSelectedItem;
-        Intent newIntent = new Intent(sInstance, StkDialogActivity.class);
-        newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                | Intent.FLAG_ACTIVITY_NO_HISTORY
-                | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
-                | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-        newIntent.putExtra("TEXT", msg);
-        newIntent.putExtra(SLOT_ID, mCurrentSlotId);
-        startActivity(newIntent);
+        StkTrace.begin("launchConfirmationDialog");
+        try {
+            msg.title = lastSelectedItem;
+            Intent newIntent = new Intent(sInstance, StkDialogActivity.class);
+            newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                    | Intent.FLAG_ACTIVITY_NO_HISTORY
+                    | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
+                    | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
+            newIntent.putExtra(StkPayloadRegistry.EXTRA_HANDLE,
+                    StkPayloadRegistry.put(mCurrentSlotId, msg));
+            newIntent.putExtra(SLOT_ID, mCurrentSlotId);
+            traceActivityLaunch();
+            startActivity(newIntent);
+        } finally {
+            StkTrace.end();
+        }
     }
 
     private void launchBrowser(BrowserSettings settings) {
-        if (settings == null) {
-            return;
-        }
+        StkTrace.begin("launchBrowser");
+        try {
+            if (settings == null) {
+                return;
+            }
 
-        Uri data = null;
-        String url;
-        if (settings.url == null) {
-            // if the command did not contain a URL,
-            // launch the browser to the default homepage.
-            CatLog.d(this, "no url data provided by proactive command." +
-                       " launching browser with stk default URL ... ");
-            url = SystemProperties.get(STK_BROWSER_DEFAULT_URL_SYSPROP,
-                    "http://www.google.com");
-        } else {
-            CatLog.d(this, "launch browser command has attached url = " + settings.url);
-            url = settings.url;
-        }
+            Uri data = null;
+            String url;
+            if (settings.url == null) {
+                // if the command did not contain a URL,
+                // launch the browser to the default homepage.
+                CatLog.d(this, "no url data provided by proactive command." +
+                           " launching browser with stk default URL ... ");
+                url = SystemProperties.get(STK_BROWSER_DEFAULT_URL_SYSPROP,
+                        "http://www.google.com");
+            } else {
+                CatLog.d(this, "launch browser command has attached url = " + settings.url);
+                url = settings.url;
+            }
 
-        if (url.startsWith("http://") || url.startsWith("https://")) {
-            data = Uri.parse(url);
-            CatLog.d(this, "launching browser with url = " + url);
-        } else {
-            String modifiedUrl = "http://" + url;
-            data = Uri.parse(modifiedUrl);
-            CatLog.d(this, "launching browser with modified url = " + modifiedUrl);
-        }
+            if (url.startsWith("http://") || url.startsWith("https://")) {
+                data = Uri.parse(url);
+                CatLog.d(this, "launching browser with url = " + url);
+            } else {
+                String modifiedUrl = "http://" + url;
+                data = Uri.parse(modifiedUrl);
+                CatLog.d(this, "launching browser with modified url = " + modifiedUrl);
+            }
 
-        Intent intent = new Intent(Intent.ACTION_VIEW);
-        intent.setData(data);
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        switch (settings.mode) {
-        case USE_EXISTING_BROWSER:
-            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            break;
-        case LAUNCH_NEW_BROWSER:
-            intent.addFlags(Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
-            break;
-        case LAUNCH_IF_NOT_ALREADY_LAUNCHED:
-            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            break;
+            Intent intent = new Intent(Intent.ACTION_VIEW);
+            intent.setData(data);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            switch (settings.mode) {
+            case USE_EXISTING_BROWSER:
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                break;
+            case LAUNCH_NEW_BROWSER:
+                intent.addFlags(Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
+                break;
+            case LAUNCH_IF_NOT_ALREADY_LAUNCHED:
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                break;
+            }
+            // start browser activity
+            startActivity(intent);
+            // a small delay, let the browser start, before displaying the next text.
+            // this is good for scenarios where a related DISPLAY TEXT command is
+            // followed immediately. Other commands are not delayed.
+            mBrowserHoldUntil = SystemClock.uptimeMillis() + mBrowserHoldTime;
+        } finally {
+            StkTrace.end();
         }
-        // start browser activity
-        startActivity(intent);
-        // a small delay, let the browser start, before processing the next command.
-        // this is good for scenarios where a related DISPLAY TEXT command is
-        // followed immediately.
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException e) {}
     }
 
     private void launchIdleText() {
-        TextMessage msg = mIdleModeTextCmd.geTextMessage();
-
-        if ((msg == null) || (msg.text == null)) {
-            CatLog.d(this, "mCurrent.getTextMessage or msg.text is NULL");
-            mNotificationManager.cancel(STK_NOTIFICATION_ID);
-            return;
-        } else {
-            PendingIntent pendingIntent = PendingIntent.getService(mContext, 0,
-                    new Intent(mContext, StkAppService.class), 0);
+        StkTrace.begin("launchIdleText");
+        try {
+            TextMessage msg = mIdleModeTextCmd.geTextMessage();
 
-            final Notification.Builder notificationBuilder = new Notification.Builder(
-                    StkAppService.this);
-            if (mMainCmd != null && mMainCmd.getMenu() != null) {
-                notificationBuilder.setContentTitle(mMainCmd.getMenu().title);
-            } else {
-                notificationBuilder.setContentTitle("");
-            }
-            notificationBuilder
-                    .setSmallIcon(com.android.internal.R.drawable.stat_notify_sim_toolkit);
-            notificationBuilder.setContentIntent(pendingIntent);
-            notificationBuilder.setOngoing(true);
-            notificationBuilder.setStyle(new Notification.BigTextStyle(notificationBuilder)
-                    .bigText(msg.text));
-            // Set text and icon for the status bar and notification body.
-            if (mIdleModeTextCmd.hasIconLoadFailed() || !msg.iconSelfExplanatory) {
-                notificationBuilder.setContentText(msg.text);
-                notificationBuilder.setTicker(msg.text);
-            }
-            if (msg.icon != null) {
-                notificationBuilder.setLargeIcon(msg.icon);
+            if ((msg == null) || (msg.text == null)) {
+                CatLog.d(this, "mCurrent.getTextMessage or msg.text is NULL");
+                mNotificationManager.cancel(STK_NOTIFICATION_ID);
+                return;
             } else {
-                Bitmap bitmapIcon = BitmapFactory.decodeResource(StkAppService.this
-                    .getResources().getSystem(),
-                    com.android.internal.R.drawable.stat_notify_sim_toolkit);
-                notificationBuilder.setLargeIcon(bitmapIcon);
+                PendingIntent pendingIntent = PendingIntent.getService(mContext, 0,
+                        new Intent(mContext, StkAppService.class), 0);
+
+                final Notification.Builder notificationBuilder = new Notification.Builder(
+                        StkAppService.this);
+                if (mMainCmd != null && mMainCmd.getMenu() != null) {
+                    notificationBuilder.setContentTitle(mMainCmd.getMenu().title);
+                } else {
+                    notificationBuilder.setContentTitle("");
+                }
+                notificationBuilder
+                        .setSmallIcon(com.android.internal.R.drawable.stat_notify_sim_toolkit);
+                notificationBuilder.setContentIntent(pendingIntent);
+                notificationBuilder.setOngoing(true);
+                notificationBuilder.setStyle(new Notification.BigTextStyle(notificationBuilder)
+                        .bigText(msg.text));
+                // Set text and icon for the status bar and notification body.
+                if (mIdleModeTextCmd.hasIconLoadFailed() || !msg.iconSelfExplanatory) {
+                    notificationBuilder.setContentText(msg.text);
+                    notificationBuilder.setTicker(msg.text);
+                }
+                if (msg.icon != null) {
+                    notificationBuilder.setLargeIcon(msg.icon);
+                } else {
+                    Bitmap bitmapIcon = BitmapFactory.decodeResource(StkAppService.this
+                        .getResources().getSystem(),
+                        com.android.internal.R.drawable.stat_notify_sim_toolkit);
+                    notificationBuilder.setLargeIcon(bitmapIcon);
+                }
+                notificationBuilder.setColor(mContext.getResources().getColor(
+                        com.android.internal.R.color.system_notification_accent_color));
+                mNotificationManager.notify(STK_NOTIFICATION_ID, notificationBuilder.build());
             }
-            notificationBuilder.setColor(mContext.getResources().getColor(
-                    com.android.internal.R.color.system_notification_accent_color));
-            mNotificationManager.notify(STK_NOTIFICATION_ID, notificationBuilder.build());
+        } finally {
+            StkTrace.end();
         }
     }
 
@@ -1425,8 +2602,10 @@ public class StkAppService extends Service {
                     | Intent.FLAG_ACTIVITY_SINGLE_TOP
                     | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
                     | getFlagActivityNoUserAction(InitiatedByUserAction.unknown));
-            newIntent.putExtra("TEXT", mCurrentCmd.geTextMessage());
+            newIntent.putExtra(StkPayloadRegistry.EXTRA_HANDLE,
+                    StkPayloadRegistry.put(mCurrentSlotId, mCurrentCmd.geTextMessage()));
             newIntent.putExtra(SLOT_ID, mCurrentSlotId);
+            traceActivityLaunch();
             startActivity(newIntent);
         }
     }
@@ -1464,100 +2643,127 @@ public class StkAppService extends Service {
     }
 
     private void launchOpenChannelDialog() {
-        TextMessage msg = mCurrentCmd.geTextMessage();
-        if (msg == null) {
-            CatLog.d(this, "msg is null, return here");
-            return;
-        }
+        StkTrace.begin("launchOpenChannelDialog");
+        try {
+            TextMessage msg = mCurrentCmd.geTextMessage();
+            if (msg == null) {
+                CatLog.d(this, "msg is null, return here");
+                return;
+            }
 
-        msg.title = getResources().getString(R.string.stk_dialog_title);
-        if (msg.text == null) {
-            msg.text = getResources().getString(R.string.default_open_channel_msg);
-        }
-
-        final AlertDialog dialog = new AlertDialog.Builder(mContext)
-                    .setIconAttribute(android.R.attr.alertDialogIcon)
-                    .setTitle(msg.title)
-                    .setMessage(msg.text)
-                    .setCancelable(false)
-                    .setPositiveButton(getResources().getString(R.string.stk_dialog_accept),
-                                       new DialogInterface.OnClickListener() {
-                        public void onClick(DialogInterface dialog, int which) {
-                            Bundle args = new Bundle();
-                            args.putInt(RES_ID, RES_ID_CHOICE);
-                            args.putInt(CHOICE, YES);
-                            args.putInt(SLOT_ID, mCurrentSlotId);
-                            Message message = obtainMessage();
-                            message.arg1 = OP_RESPONSE;
-                            message.obj = args;
-                            sendMessage(message);
-                        }
-                    })
-                    .setNegativeButton(getResources().getString(R.string.stk_dialog_reject),
-                                       new DialogInterface.OnClickListener() {
-                        public void onClick(DialogInterface dialog, int which) {
-                            Bundle args = new Bundle();
-                            args.putInt(RES_ID, RES_ID_CHOICE);
-                            args.putInt(CHOICE, NO);
-                            args.putInt(SLOT_ID, mCurrentSlotId);
-                            Message message = obtainMessage();
-                            message.arg1 = OP_RESPONSE;
-                            message.obj = args;
-                            sendMessage(message);
-                        }
-                    })
-                    .create();
+            msg.title = getResources().getString(R.string.stk_dialog_title);
+            if (msg.text == null) {
+                msg.text = getResources().getString(R.string.default_open_channel_msg);
+            }
 
-        dialog.getWindow().setType(WindowManager.LayoutParams.TYPE_SYSTEM_ALERT);
-        if (!mContext.getResources().getBoolean(
-                com.android.internal.R.bool.config_sf_slowBlur)) {
-            dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_BLUR_BEHIND);
-        }
+            final AlertDialog dialog = new AlertDialog.Builder(mContext)
+                        .setIconAttribute(android.R.attr.alertDialogIcon)
+                        .setTitle(msg.title)
+                        .setMessage(msg.text)
+                        .setCancelable(false)
+                        .setPositiveButton(getResources().getString(R.string.stk_dialog_accept),
+                                           new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                Message message = obtainMessage();
+                                message.arg1 = OP_RESPONSE;
+                                message.obj = StkResponse.choice(mCurrentSlotId, YES);
+                                sendMessage(message);
+                            }
+                        })
+                        .setNegativeButton(getResources().getString(R.string.stk_dialog_reject),
+                                           new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                Message message = obtainMessage();
+                                message.arg1 = OP_RESPONSE;
+                                message.obj = StkResponse.choice(mCurrentSlotId, NO);
+                                sendMessage(message);
+                            }
+                        })
+                        .create();
+
+            dialog.getWindow().setType(WindowManager.LayoutParams.TYPE_SYSTEM_ALERT);
+            if (!mContext.getResources().getBoolean(
+                    com.android.internal.R.bool.config_sf_slowBlur)) {
+                dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_BLUR_BEHIND);
+            }
 
-        dialog.show();
+            trackStage(mCurrentCmd, StkLatencyTracker.STAGE_UI);
+            dialog.show();
+        } finally {
+            StkTrace.end();
+        }
     }
 
     private void launchTransientEventMessage() {
-        TextMessage msg = mCurrentCmd.geTextMessage();
-        if (msg == null) {
-            CatLog.d(this, "msg is null, return here");
-            return;
-        }
-
-        msg.title = getResources().getString(R.string.stk_dialog_title);
+        StkTrace.begin("launchTransientEventMessage");
+        try {
+            TextMessage msg = mCurrentCmd.geTextMessage();
+            if (msg == null) {
+                CatLog.d(this, "msg is null, return here");
+                return;
+            }
 
-        final AlertDialog dialog = new AlertDialog.Builder(mContext)
-                    .setIconAttribute(android.R.attr.alertDialogIcon)
-                    .setTitle(msg.title)
-                    .setMessage(msg.text)
-                    .setCancelable(false)
-                    .setPositiveButton(getResources().getString(android.R.string.ok),
-                                       new DialogInterface.OnClickListener() {
-                        public void onClick(DialogInterface dialog, int which) {
-                        }
-                    })
-                    .create();
+            msg.title = getResources().getString(R.string.stk_dialog_title);
+
+            final AlertDialog dialog = new AlertDialog.Builder(mContext)
+                        .setIconAttribute(android.R.attr.alertDialogIcon)
+                        .setTitle(msg.title)
+                        .setMessage(msg.text)
+                        .setCancelable(false)
+                        .setPositiveButton(getResources().getString(android.R.string.ok),
+                                           new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                            }
+                        })
+                        .create();
+
+            dialog.getWindow().setType(WindowManager.LayoutParams.TYPE_SYSTEM_ALERT);
+            if (!mContext.getResources().getBoolean(
+                    com.android.internal.R.bool.config_sf_slowBlur)) {
+                dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_BLUR_BEHIND);
+            }
 
-        dialog.getWindow().setType(WindowManager.LayoutParams.TYPE_SYSTEM_ALERT);
-        if (!mContext.getResources().getBoolean(
-                com.android.internal.R.bool.config_sf_slowBlur)) {
-            dialog.getWindow().addFlags(WindowManager.LayoutParams.FLAG_BLUR_BEHIND);
+            trackStage(mCurrentCmd, StkLatencyTracker.STAGE_UI);
+            dialog.show();
+        } finally {
+            StkTrace.end();
         }
-
-        dialog.show();
     }
 
     private String getItemName(int itemId) {
-        Menu menu = mCurrentCmd.getMenu();
-        if (menu == null) {
+        mMenuIndex = StkMenuDiff.index(mMenuIndex, mCurrentCmd.getMenu());
+        if (mMenuIndex == null) {
             return null;
         }
-        for (Item item : menu.items) {
-            if (item.id == itemId) {
-                return item.text;
-            }
+        Item item = mMenuIndex.get(itemId);
+        return item == null ? null : item.text;
+    }
+
+    /*
+     * Compares a menu from the card with the one it replaces and logs the
+     * outcome, keeps the index of the new menu for getItemName().
+     */
+    private int diffMenu(Menu previous, Menu menu) {
+        if (previous == null || menu == null) {
+            return StkMenuDiff.STRUCTURE_CHANGED;
+        }
+        int[] changedItems = new int[1];
+        int diff = StkMenuDiff.diff(StkMenuDiff.index(mMenuIndex, previous), menu,
+                changedItems);
+        switch (diff) {
+        case StkMenuDiff.IDENTICAL:
+            CatLog.d(this, "Menu unchanged");
+            mMenuDiffSkipCount++;
+            return diff;
+        case StkMenuDiff.CONTENT_CHANGED:
+            CatLog.d(this, "Menu content changed, items: " + changedItems[0]);
+            break;
+        default:
+            CatLog.d(this, "Menu structure changed");
+            break;
         }
-        return null;
+        mMenuIndex = StkMenuDiff.index(mMenuIndex, menu);
+        return diff;
     }
 
     private boolean removeMenu() {
@@ -1601,6 +2807,11 @@ public class StkAppService extends Service {
         mClearSelectItem = false;
         mDisplayTextDlgIsVisibile = false;
         mMenuIsVisibile = false;
+        mBrowserHoldUntil = 0;
+        mMainMenuFromSnapshot = false;
+        // The next card may have a snapshot.
+        mSnapshotChecked = false;
+        StkPayloadRegistry.evictSlot(mCurrentSlotId);
     }
 
     } // End of Service Handler class
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.CatCmdMessage;
+
+import java.io.PrintWriter;
+
+/**
+ * Queue of the telephony messages (proactive commands, session end) a
+ * ServiceHandler holds while it is busy with a previous message. Storage is
+ * a ring preallocated for a fixed capacity.
+ *
+ * Only interactive commands are queued. A queued command is superseded by a
+ * later command of the same type and dropped without a terminal response:
+ * CatService checks a response against its current command, which is the
+ * later one by then. Consecutive session ends are coalesced into one.
+ *
+ */
+final class StkCmdQueue {
+    private final int[] mOps;
+    private final CatCmdMessage[] mCmds;
+    private final long[] mEnqueueTimes;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    // Counters
+    private int mMaxDepth = 0;
+    private int mDropped = 0;
+    private int mCoalesced = 0;
+    private int mSuperseded = 0;
+    private int mExpired = 0;
+    private int mDequeued = 0;
+    private long mTotalWait = 0;
+    private long mMaxWait = 0;
+
+    StkCmdQueue(int capacity) {
+        capacity = Math.max(1, capacity);
+        mOps = new int[capacity];
+        mCmds = new CatCmdMessage[capacity];
+        mEnqueueTimes = new long[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int capacity() {
+        return mOps.length;
+    }
+
+    /*
+     * Adds a message at the tail. A session end following another one is
+     * coalesced. Returns false, and counts a drop, if the queue is full.
+     */
+    boolean offer(int op, CatCmdMessage cmd, long now) {
+        if (op == StkAppService.OP_END_SESSION && mSize > 0
+                && mOps[index(mSize - 1)] == StkAppService.OP_END_SESSION) {
+            mCoalesced++;
+            return true;
+        }
+        if (mSize == mOps.length) {
+            mDropped++;
+            return false;
+        }
+        int tail = index(mSize);
+        mOps[tail] = op;
+        mCmds[tail] = cmd;
+        mEnqueueTimes[tail] = now;
+        mSize++;
+        if (mSize > mMaxDepth) {
+            mMaxDepth = mSize;
+        }
+        return true;
+    }
+
+    int peekOp() {
+        return mOps[mHead];
+    }
+
+    CatCmdMessage peekCmd() {
+        return mCmds[mHead];
+    }
+
+    long peekAge(long now) {
+        return now - mEnqueueTimes[mHead];
+    }
+
+    /*
+     * Removes the head entry and accounts the time it waited.
+     */
+    void remove(long now) {
+        long wait = peekAge(now);
+        mTotalWait += wait;
+        if (wait > mMaxWait) {
+            mMaxWait = wait;
+        }
+        mDequeued++;
+        removeHead();
+    }
+
+    /*
+     * Removes the head entry because it waited for too long.
+     */
+    void expire() {
+        mExpired++;
+        removeHead();
+    }
+
+    void clear() {
+        while (mSize > 0) {
+            removeHead();
+        }
+        mHead = 0;
+    }
+
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    int getDropped() {
+        return mDropped;
+    }
+
+    int getCoalesced() {
+        return mCoalesced;
+    }
+
+    int getSuperseded() {
+        return mSuperseded;
+    }
+
+    int getExpired() {
+        return mExpired;
+    }
+
+    long getAverageWait() {
+        return (mDequeued == 0) ? 0 : mTotalWait / mDequeued;
+    }
+
+    long getMaxWait() {
+        return mMaxWait;
+    }
+
+    /*
+     * Dumps the counters and the queued entries. Called from dumpsys without
+     * holding the handler thread, entries are only read.
+     */
+    void dump(PrintWriter pw, String prefix, long now) {
+        pw.println(prefix + "size=" + mSize + "/" + mOps.length + " maxDepth=" + mMaxDepth
+                + " dropped=" + mDropped + " coalesced=" + mCoalesced
+                + " superseded=" + mSuperseded + " expired=" + mExpired);
+        pw.println(prefix + "dequeued=" + mDequeued + " avgWait=" + getAverageWait()
+                + "ms maxWait=" + mMaxWait + "ms");
+        int size = Math.min(mSize, mOps.length);
+        for (int i = 0; i < size; i++) {
+            int index = index(i);
+            pw.println(prefix + "  [" + i + "] op=" + mOps[index] + " " + describe(mCmds[index])
+                    + " age=" + (now - mEnqueueTimes[index]) + "ms");
+        }
+    }
+
+    void dumpCompact(PrintWriter pw, int slotId, long now) {
+        pw.println("queue slot=" + slotId + " size=" + mSize + " capacity=" + mOps.length
+                + " max_depth=" + mMaxDepth + " dropped=" + mDropped
+                + " coalesced=" + mCoalesced + " superseded=" + mSuperseded
+                + " expired=" + mExpired + " dequeued=" + mDequeued
+                + " avg_wait_ms=" + getAverageWait() + " max_wait_ms=" + mMaxWait);
+        int size = Math.min(mSize, mOps.length);
+        for (int i = 0; i < size; i++) {
+            int index = index(i);
+            pw.println("queued slot=" + slotId + " pos=" + i + " op=" + mOps[index]
+                    + " type=" + describe(mCmds[index])
+                    + " age_ms=" + (now - mEnqueueTimes[index]));
+        }
+    }
+
+    private static String describe(CatCmdMessage cmd) {
+        return (cmd == null || cmd.getCmdType() == null) ? "-" : cmd.getCmdType().name();
+    }
+
+    private int index(int position) {
+        return (mHead + position) % mOps.length;
+    }
+
+    private void removeHead() {
+        mCmds[mHead] = null;
+        mHead = index(1);
+        mSize--;
+    }
+
+    /*
+     * Removes the queued command of the same type as cmd, if any, keeping the
+     * order of the other entries. Returns the removed command, which the card
+     * no longer waits for. Each offer after a supersede keeps at
+     * most one queued command per type.
+     */
+    CatCmdMessage supersede(CatCmdMessage cmd) {
+        if (cmd == null || cmd.getCmdType() == null) {
+            return null;
+        }
+        CatCmdMessage superseded = null;
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            int from = index(i);
+            if (superseded == null && mOps[from] == StkAppService.OP_CMD
+                    && mCmds[from] != null && mCmds[from].getCmdType() == cmd.getCmdType()) {
+                mSuperseded++;
+                superseded = mCmds[from];
+                mCmds[from] = null;
+                continue;
+            }
+            int to = index(kept);
+            mOps[to] = mOps[from];
+            mCmds[to] = mCmds[from];
+            mEnqueueTimes[to] = mEnqueueTimes[from];
+            if (to != from) {
+                mCmds[from] = null;
+            }
+            kept++;
+        }
+        mSize = kept;
+        return superseded;
+    }
+}
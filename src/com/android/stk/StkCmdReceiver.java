@@ -25,6 +25,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 /**
  * Receiver class to get STK intents, broadcasted by telephony layer.
@@ -58,10 +59,11 @@ public class StkCmdReceiver extends BroadcastReceiver {
         args.putInt(StkAppService.OPCODE, StkAppService.OP_CMD);
         args.putParcelable(StkAppService.CMD_MSG, intent
                 .getParcelableExtra("STK CMD"));
+        args.putLong(StkAppService.RECEIVE_TIME, SystemClock.elapsedRealtimeNanos());
         args.putInt(StkAppService.SLOT_ID, intent
                 .getIntExtra("SLOT_ID",0));
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkTrace.beginSession(args.getInt(StkAppService.SLOT_ID));
+        StkAppService.sendToService(context, args);
     }
 
     private void handleSessionEnd(Context context, Intent intent) {
@@ -69,8 +71,7 @@ public class StkCmdReceiver extends BroadcastReceiver {
         args.putInt(StkAppService.OPCODE, StkAppService.OP_END_SESSION);
         args.putInt(StkAppService.SLOT_ID, intent
                 .getIntExtra("SLOT_ID",0));
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkAppService.sendToService(context, args);
     }
 
     private void handleCardStatusChange(Context context, Intent intent) {
@@ -88,23 +89,20 @@ public class StkCmdReceiver extends BroadcastReceiver {
                 intent.getIntExtra(AppInterface.REFRESH_RESULT,
                 IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE));
         args.putInt(StkAppService.SLOT_ID, intent.getIntExtra("SLOT_ID", 0));
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkAppService.sendToService(context, args);
         }
 
     private void handleScreenStatus(Context context, boolean mScreenIdle) {
         Bundle args = new Bundle();
         args.putInt(StkAppService.OPCODE, StkAppService.OP_IDLE_SCREEN);
         args.putBoolean(StkAppService.SCREEN_STATUS,  mScreenIdle);
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkAppService.sendToService(context, args);
     }
 
     private void handleLocaleChange(Context context) {
         Bundle args = new Bundle();
         args.putInt(StkAppService.OPCODE, StkAppService.OP_LOCALE_CHANGED);
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkAppService.sendToService(context, args);
     }
 
     private void handleAlphaNotify(Context context, Intent intent) {
@@ -113,8 +111,7 @@ public class StkCmdReceiver extends BroadcastReceiver {
         args.putInt(StkAppService.OPCODE, StkAppService.OP_ALPHA_NOTIFY);
         args.putString(AppInterface.ALPHA_STRING, alphaString);
         args.putInt(StkAppService.SLOT_ID, intent.getIntExtra("SLOT_ID", 0));
-        context.startService(new Intent(context, StkAppService.class)
-                .putExtras(args));
+        StkAppService.sendToService(context, args);
     }
 
     private void handleHciConnectivity(Context context, Intent intent) {
@@ -122,7 +119,6 @@ public class StkCmdReceiver extends BroadcastReceiver {
        int slotId = intent.getIntExtra("SLOT_ID", 0);
        args.putInt(StkAppService.SLOT_ID, slotId);
        args.putInt(StkAppService.OPCODE, StkAppService.OP_HCI_CONNECTIVITY);
-       context.startService(new Intent(context, StkAppService.class)
-               .putExtras(args));
+       StkAppService.sendToService(context, args);
     }
 }
@@ -41,6 +41,8 @@ import android.widget.TextView;
 public class StkDialogActivity extends Activity implements View.OnClickListener {
     // members
     TextMessage mTextMsg;
+    private final StkPayloadRegistry.Holder mTextPayload =
+            new StkPayloadRegistry.Holder(TEXT);
     private boolean mIsResponseSent = false;
 
     StkAppService appService = StkAppService.getInstance();
@@ -115,7 +117,9 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     public void onResume() {
         super.onResume();
 
+        StkForegroundTracker.setVisibility(this, true);
         initFromIntent(getIntent());
+        StkTrace.onUiResumed(mSlotId);
         if (mTextMsg == null) {
             finish();
             return;
@@ -171,6 +175,7 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
          * sent to the card.
          */
 
+        StkForegroundTracker.setVisibility(this, false);
         appService.setDisplayTextDlgVisibility(false, mSlotId);
 
     }
@@ -189,18 +194,24 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        mTextPayload.close(isFinishing());
+        super.onDestroy();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putParcelable(TEXT, mTextMsg);
+        mTextPayload.save(outState);
     }
 
     @Override
     public void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
 
-        mTextMsg = savedInstanceState.getParcelable(TEXT);
+        mTextMsg = (TextMessage) mTextPayload.restore(savedInstanceState);
     }
 
     @Override
@@ -211,12 +222,8 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
 
     private void sendResponse(int resId, boolean confirmed) {
         if (mTextMsg.responseNeeded) {
-            Bundle args = new Bundle();
-            args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-            args.putInt(StkAppService.RES_ID, resId);
-            args.putBoolean(StkAppService.CONFIRMATION, confirmed);
-			args.putInt(StkAppService.SLOT_ID, mSlotId);
-            startService(new Intent(this, StkAppService.class).putExtras(args));
+            StkAppService.postResponse(this,
+                    StkResponse.confirm(resId, mSlotId, confirmed));
             mIsResponseSent = true;
         }
     }
@@ -228,7 +235,7 @@ public class StkDialogActivity extends Activity implements View.OnClickListener
     private void initFromIntent(Intent intent) {
 
         if (intent != null) {
-            mTextMsg = intent.getParcelableExtra("TEXT");
+            mTextMsg = (TextMessage) mTextPayload.bind(intent);
             mSlotId = intent.getIntExtra(StkAppService.SLOT_ID, 0);
         } else {
             finish();
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import android.app.Activity;
+
+import java.util.HashSet;
+
+/**
+ * Keeps track of the STK activities which are in the foreground. The STK
+ * activities report it from their onResume() and onPause() callbacks, so the
+ * service can tell whether STK UI has focus without asking ActivityManager.
+ *
+ */
+abstract class StkForegroundTracker {
+    // Resumed STK activities, guarded by itself.
+    private static final HashSet<Activity> sResumed = new HashSet<Activity>();
+    private static volatile boolean sInForeground = false;
+
+    private StkForegroundTracker() {}
+
+    static void setVisibility(Activity activity, boolean visible) {
+        synchronized (sResumed) {
+            if (visible) {
+                sResumed.add(activity);
+            } else {
+                sResumed.remove(activity);
+            }
+            sInForeground = !sResumed.isEmpty();
+        }
+    }
+
+    /*
+     * Returns true if any STK activity has focus on the screen.
+     */
+    static boolean isInForeground() {
+        return sInForeground;
+    }
+}
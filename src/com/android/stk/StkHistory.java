@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Ring of the last commands and responses of one slot, for dumpsys. The
+ * oldest entry is overwritten once the ring is full.
+ */
+final class StkHistory {
+    static final char KIND_CMD = 'C';
+    static final char KIND_RESPONSE = 'R';
+    // A command taken out of the queue without being shown.
+    static final char KIND_DROPPED = 'D';
+
+    private final long[] mTimes;
+    private final char[] mKinds;
+    private final String[] mTypes;
+    private final String[] mDetails;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    StkHistory(int capacity) {
+        capacity = Math.max(1, capacity);
+        mTimes = new long[capacity];
+        mKinds = new char[capacity];
+        mTypes = new String[capacity];
+        mDetails = new String[capacity];
+    }
+
+    synchronized void add(char kind, String type, String detail) {
+        mTimes[mNext] = System.currentTimeMillis();
+        mKinds[mNext] = kind;
+        mTypes[mNext] = type;
+        mDetails[mNext] = detail;
+        mNext = (mNext + 1) % mTimes.length;
+        if (mSize < mTimes.length) {
+            mSize++;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        for (int i = 0; i < mSize; i++) {
+            int index = position(i);
+            pw.println(prefix + format.format(new Date(mTimes[index])) + " "
+                    + name(mKinds[index]) + " " + mTypes[index]
+                    + (mDetails[index] != null ? " " + mDetails[index] : ""));
+        }
+    }
+
+    synchronized void dumpCompact(PrintWriter pw, int slotId) {
+        for (int i = 0; i < mSize; i++) {
+            int index = position(i);
+            pw.println("history slot=" + slotId + " time=" + mTimes[index]
+                    + " kind=" + name(mKinds[index])
+                    + " type=" + mTypes[index]
+                    + (mDetails[index] != null ? " detail=" + mDetails[index] : ""));
+        }
+    }
+
+    private static String name(char kind) {
+        switch (kind) {
+        case KIND_CMD:
+            return "cmd";
+        case KIND_RESPONSE:
+            return "rsp";
+        default:
+            return "drop";
+        }
+    }
+
+    // Index of the i-th oldest entry.
+    private int position(int i) {
+        return (mNext - mSize + i + mTimes.length) % mTimes.length;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.CatLog;
+import com.android.internal.telephony.cat.Input;
+import com.android.internal.telephony.cat.Item;
+import com.android.internal.telephony.cat.Menu;
+import com.android.internal.telephony.cat.TextMessage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Process wide cache of the icons carried by proactive commands, shared by
+ * all slots. Icons are keyed by their content, so an icon the card sends
+ * again, on another item, in another command or from the other slot, maps
+ * to the one bitmap already held. Icons larger than the icon size of the
+ * current density are scaled down before they are cached.
+ *
+ * Bitmaps evicted from the cache are not recycled, they may still be shown.
+ */
+abstract class StkIconCache {
+    private static final String TAG = "StkIconCache";
+
+    // Upper bound of the byte budget, the budget is 1/64 of the heap below it.
+    private static final int MAX_BUDGET = 2 * 1024 * 1024;
+    private static final int MIN_BUDGET = 256 * 1024;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final class Key {
+        final long hash;
+        final int width;
+        final int height;
+        final int targetSize;
+
+        Key(long hash, int width, int height, int targetSize) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+            this.targetSize = targetSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && width == other.width
+                    && height == other.height && targetSize == other.targetSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + targetSize;
+        }
+    }
+
+    private static LruCache<Key, Bitmap> sCache;
+    private static int sScaledCount = 0;
+
+    private StkIconCache() {}
+
+    private static synchronized LruCache<Key, Bitmap> getCache() {
+        if (sCache == null) {
+            long budget = Runtime.getRuntime().maxMemory() / 64;
+            budget = Math.max(MIN_BUDGET, Math.min(MAX_BUDGET, budget));
+            sCache = new LruCache<Key, Bitmap>((int) budget) {
+                @Override
+                protected int sizeOf(Key key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+        }
+        return sCache;
+    }
+
+    /*
+     * Replaces the icons of the command with their cached variants. Called
+     * on the handler thread of the slot before the command is used.
+     */
+    static void intern(Context context, CatCmdMessage cmd) {
+        if (cmd == null) {
+            return;
+        }
+        int targetSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        Menu menu = cmd.getMenu();
+        if (menu != null) {
+            menu.titleIcon = intern(menu.titleIcon, targetSize);
+            if (menu.items != null) {
+                for (Item item : menu.items) {
+                    if (item != null) {
+                        item.icon = intern(item.icon, targetSize);
+                    }
+                }
+            }
+        }
+        TextMessage msg = cmd.geTextMessage();
+        if (msg != null) {
+            msg.icon = intern(msg.icon, targetSize);
+        }
+        Input input = cmd.geInput();
+        if (input != null) {
+            input.icon = intern(input.icon, targetSize);
+        }
+    }
+
+    private static Bitmap intern(Bitmap icon, int targetSize) {
+        if (icon == null || icon.isRecycled() || targetSize <= 0) {
+            return icon;
+        }
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (width <= 0 || height <= 0) {
+            return icon;
+        }
+        Key key = new Key(contentHash(icon, width, height), width, height, targetSize);
+        LruCache<Key, Bitmap> cache = getCache();
+        Bitmap cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Bitmap variant = scale(icon, width, height, targetSize);
+        cache.put(key, variant);
+        return variant;
+    }
+
+    // Keeps the aspect ratio, icons within the target size are kept as they are.
+    private static Bitmap scale(Bitmap icon, int width, int height, int targetSize) {
+        int longest = Math.max(width, height);
+        if (longest <= targetSize) {
+            return icon;
+        }
+        int scaledWidth = Math.max(1, width * targetSize / longest);
+        int scaledHeight = Math.max(1, height * targetSize / longest);
+        Bitmap scaled = Bitmap.createScaledBitmap(icon, scaledWidth, scaledHeight, true);
+        if (scaled == null) {
+            return icon;
+        }
+        synchronized (StkIconCache.class) {
+            sScaledCount++;
+        }
+        CatLog.d(TAG, "Scaled icon " + width + "x" + height + " to "
+                + scaledWidth + "x" + scaledHeight);
+        return scaled;
+    }
+
+    // 64-bit FNV-1a style hash over the ARGB pixels, one int per step.
+    private static long contentHash(Bitmap icon, int width, int height) {
+        int[] row = new int[width];
+        long hash = FNV_OFFSET;
+        for (int y = 0; y < height; y++) {
+            icon.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                hash = (hash ^ pixel) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    static void dump(PrintWriter pw) {
+        LruCache<Key, Bitmap> cache;
+        int scaled;
+        synchronized (StkIconCache.class) {
+            cache = sCache;
+            scaled = sScaledCount;
+        }
+        if (cache == null) {
+            pw.println("  icons: none");
+            return;
+        }
+        pw.println("  icons: bytes=" + cache.size() + "/" + cache.maxSize()
+                + " hits=" + cache.hitCount() + " misses=" + cache.missCount()
+                + " evictions=" + cache.evictionCount() + " scaled=" + scaled);
+    }
+}
@@ -56,6 +56,8 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     private View mYesNoLayout = null;
     private View mNormalLayout = null;
     private Input mStkInput = null;
+    private final StkPayloadRegistry.Holder mInputPayload =
+            new StkPayloadRegistry.Holder("INPUT_HANDLE");
     private int mSlotId = 0;
 
     // Constants
@@ -140,7 +142,10 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
         // display parameters.
         Intent intent = getIntent();
         if (intent != null) {
-            mStkInput = intent.getParcelableExtra("INPUT");
+            mStkInput = (Input) mInputPayload.bind(intent);
+            if (icicle != null) {
+                mStkInput = (Input) mInputPayload.restore(icicle);
+            }
             mSlotId = intent.getIntExtra(StkAppService.SLOT_ID, 0);
             if (mStkInput == null) {
                 finish();
@@ -154,6 +159,18 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
         mContext = getBaseContext();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mInputPayload.save(outState);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mInputPayload.close(isFinishing());
+        super.onDestroy();
+    }
+
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
@@ -165,12 +182,15 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     public void onResume() {
         super.onResume();
 
+        StkForegroundTracker.setVisibility(this, true);
+        StkTrace.onUiResumed(mSlotId);
         startTimeOut();
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        StkForegroundTracker.setVisibility(this, false);
         //do not cancel the timer
     }
 
@@ -191,16 +211,10 @@ public class StkInputActivity extends Activity implements View.OnClickListener,
     }
 
     private void sendResponse(int resId, String input, boolean help) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        if (input != null) {
-            args.putString(StkAppService.INPUT, input);
-        }
-        args.putBoolean(StkAppService.HELP, help);
-        args.putInt(StkAppService.SLOT_ID, mSlotId);
-        mContext.startService(new Intent(mContext, StkAppService.class)
-                .putExtras(args));
+        StkResponse response = (resId == StkAppService.RES_ID_INPUT)
+                ? StkResponse.input(mSlotId, input, help)
+                : StkResponse.of(resId, mSlotId);
+        StkAppService.postResponse(mContext, response);
     }
 
     @Override
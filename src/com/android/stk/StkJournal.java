@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatLog;
+import com.android.internal.telephony.cat.ResultCode;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Always-on journal of proactive commands, terminal responses and session
+ * ends. Every slot has a ring of fixed size records in a memory-mapped file,
+ * so a record costs a few stores into the page cache: nothing is allocated
+ * and nothing is synced on the handler thread, the kernel writes the pages
+ * back. The file survives crashes of the phone process and is read back by
+ * dumpsys or pulled for the host tools.
+ *
+ * File layout, big endian:
+ *   header       int magic, int version, int slot count, int capacity,
+ *                int record size, 12 bytes reserved
+ *   per slot     long sequence of the next record, 8 bytes reserved, then
+ *                capacity records, record n at index n % capacity
+ *   record       long wall time in ms, long elapsed realtime in us,
+ *                byte kind, byte command type, byte response id,
+ *                byte result code, int detail
+ *
+ * The detail of a command is the time it waited in the queue, the one of a
+ * response the time since the command was received, both in us or -1 if
+ * unknown. An event download carries the event. A command dropped from the
+ * queue carries the result code it was answered with, if any, and no detail.
+ * Unknown bytes are 0xff.
+ */
+final class StkJournal {
+    static final int MAGIC = 0x53544b4a;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SLOT_HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+
+    static final int KIND_CMD = 1;
+    static final int KIND_RESPONSE = 2;
+    static final int KIND_SESSION_END = 3;
+    static final int KIND_EVENT = 4;
+    static final int KIND_DROPPED = 5;
+
+    static final int NONE = 0xff;
+
+    private static final String[] KIND_NAMES = { "-", "cmd", "response", "session_end",
+            "event", "dropped" };
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotCount;
+    private final int mCapacity;
+    // Next record per slot, written by the handler thread of the slot only.
+    private final long[] mSequence;
+
+    private StkJournal(MappedByteBuffer buffer, int slotCount, int capacity) {
+        mBuffer = buffer;
+        mSlotCount = slotCount;
+        mCapacity = capacity;
+        mSequence = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            mSequence[i] = buffer.getLong(slotOffset(i, capacity));
+        }
+    }
+
+    /*
+     * Maps the journal file, keeping its records if it has the same layout.
+     * Returns null if the file cannot be mapped.
+     */
+    static StkJournal open(File file, int slotCount, int capacity) {
+        long size = HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE
+                + (long) capacity * RECORD_SIZE);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            boolean valid = raf.length() == size;
+            if (!valid) {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+            if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != slotCount || buffer.getInt(12) != capacity
+                    || buffer.getInt(16) != RECORD_SIZE) {
+                for (int i = 0; i < slotCount; i++) {
+                    buffer.putLong(slotOffset(i, capacity), 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, slotCount);
+                buffer.putInt(12, capacity);
+                buffer.putInt(16, RECORD_SIZE);
+            }
+            return new StkJournal(buffer, slotCount, capacity);
+        } catch (IOException e) {
+            CatLog.d("StkJournal", "Cannot map " + file + ": " + e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore, the mapping stays valid.
+                }
+            }
+        }
+    }
+
+    private static int slotOffset(int slotId, int capacity) {
+        return HEADER_SIZE + slotId * (SLOT_HEADER_SIZE + capacity * RECORD_SIZE);
+    }
+
+    /*
+     * Adds a record to the ring of the slot. Must be called on the handler
+     * thread of the slot.
+     */
+    void record(int slotId, int kind, CommandType type, int resId, ResultCode resultCode,
+            long detail) {
+        if (slotId < 0 || slotId >= mSlotCount) {
+            return;
+        }
+        long sequence = mSequence[slotId];
+        int slotOffset = slotOffset(slotId, mCapacity);
+        int offset = slotOffset + SLOT_HEADER_SIZE
+                + (int) (sequence % mCapacity) * RECORD_SIZE;
+        ByteBuffer buffer = mBuffer;
+        buffer.putLong(offset, System.currentTimeMillis());
+        buffer.putLong(offset + 8, SystemClock.elapsedRealtimeNanos() / 1000);
+        buffer.put(offset + 16, (byte) kind);
+        buffer.put(offset + 17, (byte) ((type != null) ? type.value() : NONE));
+        buffer.put(offset + 18, (byte) resId);
+        buffer.put(offset + 19, (byte) ((resultCode != null) ? resultCode.value() : NONE));
+        buffer.putInt(offset + 20, (int) Math.max(Math.min(detail, Integer.MAX_VALUE), -1));
+        // The sequence goes last, a reader never sees a half written record as valid.
+        mSequence[slotId] = sequence + 1;
+        buffer.putLong(slotOffset, sequence + 1);
+    }
+
+    /*
+     * Prints the records of the slot, oldest first.
+     */
+    void dump(PrintWriter pw, int slotId) {
+        if (slotId < 0 || slotId >= mSlotCount) {
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        int slotOffset = slotOffset(slotId, mCapacity);
+        long end = mBuffer.getLong(slotOffset);
+        long start = Math.max(0, end - mCapacity);
+        pw.println("journal slot=" + slotId + " records=" + (end - start) + " total=" + end);
+        for (long n = start; n < end; n++) {
+            int offset = slotOffset + SLOT_HEADER_SIZE + (int) (n % mCapacity) * RECORD_SIZE;
+            int kind = mBuffer.get(offset + 16) & 0xff;
+            pw.println(format.format(new Date(mBuffer.getLong(offset)))
+                    + " elapsed=" + mBuffer.getLong(offset + 8)
+                    + " kind=" + ((kind < KIND_NAMES.length) ? KIND_NAMES[kind] : kind)
+                    + " type=" + hex(mBuffer.get(offset + 17))
+                    + " res_id=" + hex(mBuffer.get(offset + 18))
+                    + " result=" + hex(mBuffer.get(offset + 19))
+                    + " detail=" + mBuffer.getInt(offset + 20));
+        }
+    }
+
+    private static String hex(byte value) {
+        return String.format("%02x", value & 0xff);
+    }
+}
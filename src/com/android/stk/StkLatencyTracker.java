@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatCmdMessage;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Latency of the proactive commands of one slot, measured from the moment
+ * StkCmdReceiver got the command. Each stage (dequeued by the ServiceHandler,
+ * UI launched, terminal response sent) is kept in a log2 histogram of
+ * microseconds per command type. All memory is allocated up front.
+ *
+ * In-flight commands are matched by identity hash and type, the tracker does
+ * not keep references to them.
+ */
+final class StkLatencyTracker {
+    static final int STAGE_DEQUEUE = 0;
+    static final int STAGE_UI = 1;
+    static final int STAGE_RESPONSE = 2;
+    static final int STAGE_COUNT = 3;
+    static final String[] STAGE_NAMES = { "dequeue", "ui", "response" };
+
+    // Bucket b holds samples in [2^(b-1), 2^b) us, the last one everything above.
+    static final int BUCKET_COUNT = 32;
+
+    // Commands received but not answered yet. Queue capacity plus the current one
+    // is enough in practice, the oldest entry is dropped when it is full.
+    private static final int MAX_IN_FLIGHT = 16;
+
+    private static final CommandType[] TYPES = CommandType.values();
+
+    private final int[] mBuckets = new int[TYPES.length * STAGE_COUNT * BUCKET_COUNT];
+    private final long[] mMax = new long[TYPES.length * STAGE_COUNT];
+
+    private final boolean[] mInFlightUsed = new boolean[MAX_IN_FLIGHT];
+    private final int[] mInFlightId = new int[MAX_IN_FLIGHT];
+    private final int[] mInFlightType = new int[MAX_IN_FLIGHT];
+    private final long[] mInFlightStart = new long[MAX_IN_FLIGHT];
+    private final int[] mInFlightStages = new int[MAX_IN_FLIGHT];
+    private int mInFlightDropped = 0;
+
+    /**
+     * Starts tracking a command.
+     *
+     * @param receiveTime SystemClock.elapsedRealtimeNanos() when the command was received.
+     */
+    synchronized void onReceived(CatCmdMessage cmd, long receiveTime) {
+        if (cmd == null || cmd.getCmdType() == null || find(cmd) >= 0) {
+            return;
+        }
+        int slot = -1;
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (!mInFlightUsed[i]) {
+                slot = i;
+                break;
+            }
+            if (slot < 0 || mInFlightStart[i] < mInFlightStart[slot]) {
+                slot = i;
+            }
+        }
+        if (mInFlightUsed[slot]) {
+            mInFlightDropped++;
+        }
+        mInFlightUsed[slot] = true;
+        mInFlightId[slot] = System.identityHashCode(cmd);
+        mInFlightType[slot] = cmd.getCmdType().ordinal();
+        mInFlightStart[slot] = receiveTime;
+        mInFlightStages[slot] = 0;
+    }
+
+    /**
+     * Records the first time a tracked command reaches the given stage.
+     * The command is forgotten once its terminal response is recorded.
+     * Returns the time since the command was received in us, or -1 if the
+     * command is not tracked or already reached the stage.
+     */
+    synchronized long onStage(CatCmdMessage cmd, int stage) {
+        int i = find(cmd);
+        if (i < 0 || (mInFlightStages[i] & (1 << stage)) != 0) {
+            return -1;
+        }
+        mInFlightStages[i] |= 1 << stage;
+        long micros = (SystemClock.elapsedRealtimeNanos() - mInFlightStart[i]) / 1000;
+        record(cmd.getCmdType(), stage, micros);
+        if (stage == STAGE_RESPONSE) {
+            mInFlightUsed[i] = false;
+        }
+        return micros;
+    }
+
+    /**
+     * Forgets a command the app does not send a terminal response for,
+     * once it has been handled.
+     */
+    synchronized void retire(CatCmdMessage cmd) {
+        int i = find(cmd);
+        if (i >= 0) {
+            mInFlightUsed[i] = false;
+        }
+    }
+
+    synchronized int getInFlightCount() {
+        int count = 0;
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (mInFlightUsed[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized int getInFlightDropped() {
+        return mInFlightDropped;
+    }
+
+    synchronized long getCount(CommandType type, int stage) {
+        int base = index(type, stage) * BUCKET_COUNT;
+        long count = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            count += mBuckets[base + b];
+        }
+        return count;
+    }
+
+    synchronized long getMax(CommandType type, int stage) {
+        return mMax[index(type, stage)];
+    }
+
+    /**
+     * Returns the upper bound in microseconds of the bucket holding the given
+     * percentile, or 0 if nothing was recorded.
+     */
+    synchronized long getPercentile(CommandType type, int stage, int percent) {
+        long count = getCount(type, stage);
+        if (count == 0) {
+            return 0;
+        }
+        int base = index(type, stage) * BUCKET_COUNT;
+        long target = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT - 1; b++) {
+            seen += mBuckets[base + b];
+            if (seen >= target) {
+                return 1L << b;
+            }
+        }
+        return mMax[index(type, stage)];
+    }
+
+    /*
+     * Same as getPercentile() over all command types.
+     */
+    synchronized long getOverallPercentile(int stage, int percent) {
+        long count = 0;
+        long max = 0;
+        for (CommandType type : TYPES) {
+            count += getCount(type, stage);
+            max = Math.max(max, getMax(type, stage));
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT - 1; b++) {
+            for (CommandType type : TYPES) {
+                seen += mBuckets[index(type, stage) * BUCKET_COUNT + b];
+            }
+            if (seen >= target) {
+                return 1L << b;
+            }
+        }
+        return max;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(mBuckets, 0);
+        Arrays.fill(mMax, 0);
+        mInFlightDropped = 0;
+    }
+
+    static CommandType[] getCommandTypes() {
+        return TYPES;
+    }
+
+    /*
+     * Dumps p50/p90/p99 and max in microseconds of every command type and stage
+     * which has samples. Percentiles are bucket upper bounds.
+     */
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "inFlight=" + getInFlightCount() + " inFlightDropped="
+                + mInFlightDropped);
+        for (CommandType type : TYPES) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                long count = getCount(type, stage);
+                if (count == 0) {
+                    continue;
+                }
+                pw.println(prefix + type.name() + " " + STAGE_NAMES[stage] + ": n=" + count
+                        + " p50=" + getPercentile(type, stage, 50)
+                        + " p90=" + getPercentile(type, stage, 90)
+                        + " p99=" + getPercentile(type, stage, 99)
+                        + " max=" + getMax(type, stage) + " (us)");
+            }
+        }
+    }
+
+    synchronized void dumpCompact(PrintWriter pw, int slotId) {
+        for (CommandType type : TYPES) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                long count = getCount(type, stage);
+                if (count == 0) {
+                    continue;
+                }
+                pw.println("latency slot=" + slotId + " type=" + type.name()
+                        + " stage=" + STAGE_NAMES[stage] + " n=" + count
+                        + " p50_us=" + getPercentile(type, stage, 50)
+                        + " p90_us=" + getPercentile(type, stage, 90)
+                        + " p99_us=" + getPercentile(type, stage, 99)
+                        + " max_us=" + getMax(type, stage));
+            }
+        }
+    }
+
+    synchronized void record(CommandType type, int stage, long micros) {
+        int index = index(type, stage);
+        if (micros < 0) {
+            micros = 0;
+        }
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets[index * BUCKET_COUNT + bucket]++;
+        if (micros > mMax[index]) {
+            mMax[index] = micros;
+        }
+    }
+
+    private int find(CatCmdMessage cmd) {
+        if (cmd == null || cmd.getCmdType() == null) {
+            return -1;
+        }
+        int id = System.identityHashCode(cmd);
+        int type = cmd.getCmdType().ordinal();
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (mInFlightUsed[i] && mInFlightId[i] == id && mInFlightType[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int index(CommandType type, int stage) {
+        return type.ordinal() * STAGE_COUNT + stage;
+    }
+}
@@ -21,18 +21,23 @@ import android.content.Intent;
 import android.os.Bundle;
 
 /**
- * Launcher class. Serve as the app's MAIN activity, send an intent to the
- * StkAppService and finish.
+ * Launcher class. Serve as the app's MAIN activity, show the main menu if
+ * StkAppService has it, otherwise send an intent to the StkAppService, and
+ * finish.
  *
  */
 public class StkLauncherActivity extends Activity {
+    private static int mSlotId = 0;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_LAUNCH_APP);
-        startService(new Intent(this, StkAppService.class).putExtras(args));
+        if (!StkAppService.launchMainMenu(this, mSlotId)) {
+            Bundle args = new Bundle();
+            args.putInt(StkAppService.OPCODE, StkAppService.OP_LAUNCH_APP);
+            startService(new Intent(this, StkAppService.class).putExtras(args));
+        }
 
         finish();
     }
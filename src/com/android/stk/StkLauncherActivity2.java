@@ -35,8 +35,9 @@ import android.content.Intent;
 import android.os.Bundle;
 
 /**
- * Launcher class. Serve as the app's MAIN activity, send an intent to the
- * StkAppService and finish.
+ * Launcher class. Serve as the app's MAIN activity, show the main menu if
+ * StkAppService has it, otherwise send an intent to the StkAppService, and
+ * finish.
  *
  */
 public class StkLauncherActivity2 extends Activity {
@@ -46,10 +47,12 @@ public class StkLauncherActivity2 extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        Intent intent = new Intent(this, StkAppService.class);
-        intent.putExtra(StkAppService.OPCODE, StkAppService.OP_LAUNCH_APP);
-        intent.putExtra(StkAppService.SLOT_ID, mSlotId);
-        startService(intent);
+        if (!StkAppService.launchMainMenu(this, mSlotId)) {
+            Intent intent = new Intent(this, StkAppService.class);
+            intent.putExtra(StkAppService.OPCODE, StkAppService.OP_LAUNCH_APP);
+            intent.putExtra(StkAppService.SLOT_ID, mSlotId);
+            startService(intent);
+        }
 
         finish();
     }
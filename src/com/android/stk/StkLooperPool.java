@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Small pool of looper threads shared by the per slot ServiceHandlers of
+ * StkAppService. Every slot is pinned to one worker, so messages of a slot
+ * keep their FIFO order, while slots pinned to different workers are
+ * processed in parallel. The pool never has more workers than slots or
+ * available cores. A worker is started when a slot first acquires it and
+ * quits once no slot holds it anymore. Starting a worker never blocks the
+ * caller, the Callback is told when its looper is ready.
+ *
+ */
+final class StkLooperPool {
+    interface Callback {
+        /*
+         * Called on the worker thread once its looper can be used.
+         */
+        void onLooperReady();
+    }
+
+    private final class Worker extends HandlerThread {
+        private volatile boolean mReady = false;
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void onLooperPrepared() {
+            mReady = true;
+            mCallback.onLooperReady();
+        }
+    }
+
+    private final Callback mCallback;
+    private final Worker[] mWorkers;
+    // Number of slots currently holding each worker.
+    private final int[] mLeases;
+
+    // Queueing delay statistics per slot, in milliseconds.
+    private final long[] mQueueDelayTotal;
+    private final long[] mQueueDelayMax;
+    private final int[] mQueueDelayCount;
+
+    StkLooperPool(int slotCount, Callback callback) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        mCallback = callback;
+        mWorkers = new Worker[Math.max(1, Math.min(slotCount, cores))];
+        mLeases = new int[mWorkers.length];
+        mQueueDelayTotal = new long[slotCount];
+        mQueueDelayMax = new long[slotCount];
+        mQueueDelayCount = new int[slotCount];
+    }
+
+    /*
+     * Takes a lease on the worker serving the given slot, starting it if needed.
+     * Returns its looper, or null if the looper is not ready yet. Every call must
+     * be balanced by a call to release().
+     */
+    synchronized Looper acquire(int slotId) {
+        int index = slotId % mWorkers.length;
+        if (mWorkers[index] == null) {
+            mWorkers[index] = new Worker("StkWorker" + index);
+            mWorkers[index].start();
+        }
+        mLeases[index]++;
+        return getLooper(slotId);
+    }
+
+    /*
+     * Returns the looper serving the given slot without waiting for it, null if
+     * its worker is not running or not ready yet.
+     */
+    synchronized Looper getLooper(int slotId) {
+        Worker worker = mWorkers[slotId % mWorkers.length];
+        if (worker == null || !worker.mReady) {
+            return null;
+        }
+        return worker.getLooper();
+    }
+
+    /*
+     * Gives back the looper of the given slot. The worker quits after the
+     * messages already due are delivered, if no other slot holds it.
+     */
+    synchronized void release(int slotId) {
+        int index = slotId % mWorkers.length;
+        if (mLeases[index] == 0) {
+            return;
+        }
+        mLeases[index]--;
+        if (mLeases[index] == 0 && mWorkers[index] != null) {
+            mWorkers[index].quitSafely();
+            mWorkers[index] = null;
+        }
+    }
+
+    int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /*
+     * Records the time a message of the given slot waited in its looper queue
+     * before being dispatched. Called on the worker thread serving the slot.
+     */
+    void recordQueueDelay(int slotId, long delayMs) {
+        if (delayMs < 0) {
+            delayMs = 0;
+        }
+        mQueueDelayTotal[slotId] += delayMs;
+        mQueueDelayCount[slotId]++;
+        if (delayMs > mQueueDelayMax[slotId]) {
+            mQueueDelayMax[slotId] = delayMs;
+        }
+    }
+
+    long getAverageQueueDelay(int slotId) {
+        int count = mQueueDelayCount[slotId];
+        return (count == 0) ? 0 : mQueueDelayTotal[slotId] / count;
+    }
+
+    long getMaxQueueDelay(int slotId) {
+        return mQueueDelayMax[slotId];
+    }
+
+    synchronized void quit() {
+        for (int i = 0; i < mWorkers.length; i++) {
+            if (mWorkers[i] != null) {
+                mWorkers[i].quit();
+                mWorkers[i] = null;
+            }
+            mLeases[i] = 0;
+        }
+    }
+}
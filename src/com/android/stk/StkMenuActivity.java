@@ -49,6 +49,11 @@ import com.android.internal.telephony.cat.CatLog;
 public class StkMenuActivity extends ListActivity implements View.OnCreateContextMenuListener {
     private Context mContext;
     private Menu mStkMenu = null;
+    // The menu the list shows and its adapter, kept across onResume().
+    private Menu mDisplayedMenu = null;
+    private StkMenuAdapter mAdapter = null;
+    private final StkPayloadRegistry.Holder mMenuPayload =
+            new StkPayloadRegistry.Holder("MENU_HANDLE");
     private int mState = STATE_MAIN;
     private boolean mAcceptUsersInput = true;
     private int mSlotId = 0;
@@ -153,6 +158,8 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     public void onResume() {
         super.onResume();
 
+        StkForegroundTracker.setVisibility(this, true);
+        StkTrace.onUiResumed(mSlotId);
         appService.indicateMenuVisibility(true, mSlotId);
         if (mStkMenu == null) {
             finish();
@@ -183,6 +190,7 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     public void onPause() {
         super.onPause();
 
+        StkForegroundTracker.setVisibility(this, false);
         appService.indicateMenuVisibility(false, mSlotId);
         /*
          * do not cancel the timer here cancelTimeOut(). If any higher/lower
@@ -199,6 +207,7 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     @Override
     public void onDestroy() {
         getListView().setOnCreateContextMenuListener(null);
+        mMenuPayload.close(isFinishing());
         super.onDestroy();
 
         CatLog.d(this, "onDestroy");
@@ -301,13 +310,14 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         outState.putInt("STATE", mState);
-        outState.putParcelable("MENU", mStkMenu);
+        mMenuPayload.save(outState);
     }
 
     @Override
     protected void onRestoreInstanceState(Bundle savedInstanceState) {
         mState = savedInstanceState.getInt("STATE");
-        mStkMenu = savedInstanceState.getParcelable("MENU");
+        Menu menu = (Menu) mMenuPayload.restore(savedInstanceState);
+        mStkMenu = mState == STATE_SECONDARY ? menu : appService.getMenu(mSlotId);
     }
 
     private void cancelTimeOut() {
@@ -326,7 +336,8 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     // Bind list adapter to the items list.
     private void displayMenu() {
 
-        if (mStkMenu != null) {
+        // Resuming on the menu already shown keeps the list as it is.
+        if (mStkMenu != null && mStkMenu != mDisplayedMenu) {
             String title = mStkMenu.title == null ? getString(R.string.app_name) : mStkMenu.title;
             // Display title & title icon
             if (mStkMenu.titleIcon != null) {
@@ -342,13 +353,25 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
                 mTitleTextView.setVisibility(View.VISIBLE);
                 mTitleTextView.setText(title);
             }
-            // create an array adapter for the menu list
-            StkMenuAdapter adapter = new StkMenuAdapter(this,
-                    mStkMenu.items, mStkMenu.itemsIconSelfExplanatory);
-            // Bind menu list to the new adapter.
-            setListAdapter(adapter);
-            // Set default item
-            setSelection(mStkMenu.defaultItem);
+            Menu previous = mDisplayedMenu;
+            mDisplayedMenu = mStkMenu;
+            if (mAdapter == null) {
+                mAdapter = new StkMenuAdapter(this,
+                        mStkMenu.items, mStkMenu.itemsIconSelfExplanatory);
+                // Bind menu list to the adapter.
+                setListAdapter(mAdapter);
+            } else if (!mAdapter.setItems(mStkMenu.items,
+                    mStkMenu.itemsIconSelfExplanatory)) {
+                // Same items, stay where the user scrolled to.
+                return;
+            }
+            // Set the default item when the card gives one or the items moved, new
+            // text or icons on the same items keep the scroll position.
+            if (mStkMenu.defaultItem != 0 || StkMenuDiff.diff(
+                    StkMenuDiff.index(null, previous), mStkMenu, new int[1])
+                    == StkMenuDiff.STRUCTURE_CHANGED) {
+                setSelection(mStkMenu.defaultItem);
+            }
         }
     }
 
@@ -359,7 +382,7 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
             mSlotId = intent.getIntExtra(StkAppService.SLOT_ID, 0);
 
             if (mState == STATE_SECONDARY) {
-                mStkMenu = intent.getParcelableExtra("MENU");
+                mStkMenu = (Menu) mMenuPayload.bind(intent);
             } else {
                 cancelTimeOut();
                 mStkMenu = appService.getMenu(mSlotId);
@@ -392,13 +415,9 @@ public class StkMenuActivity extends ListActivity implements View.OnCreateContex
     }
 
     private void sendResponse(int resId, int itemId, boolean help) {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_RESPONSE);
-        args.putInt(StkAppService.RES_ID, resId);
-        args.putInt(StkAppService.MENU_SELECTION, itemId);
-        args.putBoolean(StkAppService.HELP, help);
-        args.putInt(StkAppService.SLOT_ID, mSlotId);
-        mContext.startService(new Intent(mContext, StkAppService.class)
-                .putExtras(args));
+        StkResponse response = (resId == StkAppService.RES_ID_MENU_SELECTION)
+                ? StkResponse.menuSelection(mSlotId, itemId, help)
+                : StkResponse.of(resId, mSlotId);
+        StkAppService.postResponse(mContext, response);
     }
 }
@@ -19,48 +19,139 @@ package com.android.stk;
 import com.android.internal.telephony.cat.Item;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.List;
 
 /**
- * Icon list view adapter to show the list of STK items.
+ * Icon list view adapter to show the list of STK items. The adapter is kept
+ * by StkMenuActivity across menus, item ids are stable so the list keeps its
+ * position when the same menu is shown again, and a row is only rebound
+ * when its text or icon differ from what it already shows.
  */
-public class StkMenuAdapter extends ArrayAdapter<Item> {
+public class StkMenuAdapter extends BaseAdapter {
     private final LayoutInflater mInflater;
+    private List<Item> mItems;
     private boolean mIcosSelfExplanatory = false;
 
+    private static final class ViewHolder {
+        final TextView text;
+        final ImageView icon;
+        CharSequence boundText;
+        Bitmap boundIcon;
+        boolean bound = false;
+
+        ViewHolder(View view) {
+            text = (TextView) view.findViewById(R.id.text);
+            icon = (ImageView) view.findViewById(R.id.icon);
+        }
+    }
+
     public StkMenuAdapter(Context context, List<Item> items,
             boolean icosSelfExplanatory) {
-        super(context, 0, items);
         mInflater = LayoutInflater.from(context);
+        mItems = items;
+        mIcosSelfExplanatory = icosSelfExplanatory;
+    }
+
+    /**
+     * Switches to the items of another menu. Returns false, without
+     * notifying the list, when the items show the same as the current ones.
+     */
+    boolean setItems(List<Item> items, boolean icosSelfExplanatory) {
+        boolean same = icosSelfExplanatory == mIcosSelfExplanatory && isSame(mItems, items);
+        mItems = items;
         mIcosSelfExplanatory = icosSelfExplanatory;
+        if (same) {
+            return false;
+        }
+        notifyDataSetChanged();
+        return true;
+    }
+
+    // Icons are shared through StkIconCache, equal icons are the same bitmap.
+    private static boolean isSame(List<Item> a, List<Item> b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            Item x = a.get(i);
+            Item y = b.get(i);
+            if (x == y) {
+                continue;
+            }
+            if (x == null || y == null || x.id != y.id || x.icon != y.icon
+                    || !TextUtils.equals(x.text, y.text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mItems == null ? 0 : mItems.size();
+    }
+
+    @Override
+    public Item getItem(int position) {
+        return mItems.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Item item = getItem(position);
+        return item == null ? -1 : item.id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final Item item = getItem(position);
+        ViewHolder holder;
 
         if (convertView == null) {
             convertView = mInflater.inflate(R.layout.stk_menu_item, parent,
                     false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
         }
 
+        CharSequence text = null;
         if (!mIcosSelfExplanatory || (mIcosSelfExplanatory && item.icon == null)) {
-            ((TextView) convertView.findViewById(R.id.text)).setText(item.text);
+            text = item.text;
         }
-        ImageView imageView = ((ImageView) convertView.findViewById(R.id.icon));
-        if (item.icon == null) {
-            imageView.setVisibility(View.GONE);
-        } else {
-            imageView.setImageBitmap(item.icon);
-            imageView.setVisibility(View.VISIBLE);
+        if (!holder.bound || !TextUtils.equals(text, holder.boundText)) {
+            holder.text.setText(text);
+            holder.boundText = text;
+        }
+        if (!holder.bound || item.icon != holder.boundIcon) {
+            if (item.icon == null) {
+                holder.icon.setImageDrawable(null);
+                holder.icon.setVisibility(View.GONE);
+            } else {
+                holder.icon.setImageBitmap(item.icon);
+                holder.icon.setVisibility(View.VISIBLE);
+            }
+            holder.boundIcon = item.icon;
         }
+        holder.bound = true;
 
         return convertView;
     }
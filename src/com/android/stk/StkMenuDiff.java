@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.Item;
+import com.android.internal.telephony.cat.Menu;
+
+import android.text.TextUtils;
+import android.util.SparseIntArray;
+
+/**
+ * Item id index of a menu and the comparison of a menu the card sends with
+ * the one it replaces. Icons are compared by reference, they are interned
+ * by StkIconCache before a command is handled. Title text attributes are
+ * not shown by the app and are not compared.
+ */
+abstract class StkMenuDiff {
+    static final int IDENTICAL = 0;
+    // Same item ids in the same order, the header or some items differ.
+    static final int CONTENT_CHANGED = 1;
+    // Items were added, removed or reordered.
+    static final int STRUCTURE_CHANGED = 2;
+
+    private StkMenuDiff() {}
+
+    /**
+     * Position of each item id of one menu.
+     */
+    static final class Index {
+        final Menu menu;
+        private final SparseIntArray mPositions;
+
+        private Index(Menu menu) {
+            this.menu = menu;
+            int size = menu.items == null ? 0 : menu.items.size();
+            mPositions = new SparseIntArray(size);
+            for (int i = 0; i < size; i++) {
+                Item item = menu.items.get(i);
+                if (item != null && mPositions.indexOfKey(item.id) < 0) {
+                    mPositions.put(item.id, i);
+                }
+            }
+        }
+
+        int positionOf(int itemId) {
+            return mPositions.get(itemId, -1);
+        }
+
+        Item get(int itemId) {
+            int position = positionOf(itemId);
+            return position < 0 ? null : menu.items.get(position);
+        }
+    }
+
+    /*
+     * Returns the index of the menu, reusing the cached one if it belongs
+     * to the same menu.
+     */
+    static Index index(Index cached, Menu menu) {
+        if (menu == null) {
+            return null;
+        }
+        if (cached != null && cached.menu == menu) {
+            return cached;
+        }
+        return new Index(menu);
+    }
+
+    /*
+     * Compares the new menu with the old one, changedItems gets the number
+     * of items whose text or icon differ when the structure is the same.
+     */
+    static int diff(Index old, Menu menu, int[] changedItems) {
+        changedItems[0] = 0;
+        if (old == null || menu == null || old.menu.items == null || menu.items == null
+                || old.menu.items.size() != menu.items.size()) {
+            return STRUCTURE_CHANGED;
+        }
+        int changed = 0;
+        for (int i = 0; i < menu.items.size(); i++) {
+            Item item = menu.items.get(i);
+            if (item == null || old.positionOf(item.id) != i) {
+                return STRUCTURE_CHANGED;
+            }
+            Item oldItem = old.menu.items.get(i);
+            if (oldItem.icon != item.icon || !TextUtils.equals(oldItem.text, item.text)) {
+                changed++;
+            }
+        }
+        changedItems[0] = changed;
+        return changed == 0 && isSameHeader(old.menu, menu) ? IDENTICAL : CONTENT_CHANGED;
+    }
+
+    private static boolean isSameHeader(Menu a, Menu b) {
+        return TextUtils.equals(a.title, b.title)
+                && a.titleIcon == b.titleIcon
+                && a.titleIconSelfExplanatory == b.titleIconSelfExplanatory
+                && a.itemsIconSelfExplanatory == b.itemsIconSelfExplanatory
+                && a.defaultItem == b.defaultItem
+                && a.helpAvailable == b.helpAvailable
+                && a.softKeyPreferred == b.softKeyPreferred
+                && a.presentationType == b.presentationType;
+    }
+}
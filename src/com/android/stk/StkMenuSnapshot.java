@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface;
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.CatLog;
+
+import android.content.Context;
+import android.os.Build;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * On-disk copy of the SET UP MENU command of each slot, so the main menu is
+ * available as soon as the service comes back after a restart of the phone
+ * process, before the card sends SET UP MENU again. A snapshot belongs to
+ * the card it was taken from and to the build which wrote it, it is dropped
+ * when read back for another ICCID or fingerprint.
+ *
+ * File format, big endian: int magic, int version, UTF fingerprint,
+ * UTF ICCID, int length and the marshalled CatCmdMessage parcel.
+ */
+abstract class StkMenuSnapshot {
+    private static final String TAG = "StkMenuSnapshot";
+    private static final int MAGIC = 0x53544b4d;
+    private static final int VERSION = 1;
+    private static final String FILE_PREFIX = "stk_menu_";
+
+    // Writes and deletes run in order, off the handler threads.
+    private static final Executor sWriter = Executors.newSingleThreadExecutor();
+
+    private StkMenuSnapshot() {}
+
+    /*
+     * Returns the ICCID of the card in the slot, or null while it is not
+     * known yet.
+     */
+    static String getIccId(int slotId) {
+        int[] subIds = SubscriptionManager.getSubId(slotId);
+        if (subIds == null || subIds.length == 0) {
+            return null;
+        }
+        String iccId = TelephonyManager.getDefault().getSimSerialNumber(subIds[0]);
+        return (iccId != null && !iccId.isEmpty()) ? iccId : null;
+    }
+
+    /*
+     * Stores the SET UP MENU command for the card in the slot. The command is
+     * marshalled on the calling thread and written in the background.
+     */
+    static void save(Context context, final int slotId, CatCmdMessage setUpMenu) {
+        String iccId = getIccId(slotId);
+        byte[] cmd = StkRecorder.marshall(setUpMenu);
+        if (iccId == null || cmd == null
+                || setUpMenu.getCmdType() != AppInterface.CommandType.SET_UP_MENU) {
+            delete(context, slotId);
+            return;
+        }
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(cmd.length + 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeUTF(iccId);
+            out.writeInt(cmd.length);
+            out.write(cmd);
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            return;
+        }
+        final AtomicFile file = getFile(context, slotId);
+        sWriter.execute(new Runnable() {
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = file.startWrite();
+                    out.write(data);
+                    file.finishWrite(out);
+                } catch (IOException e) {
+                    CatLog.d(TAG, "Cannot save menu of slot " + slotId + ": " + e);
+                    if (out != null) {
+                        file.failWrite(out);
+                    }
+                }
+            }
+        });
+    }
+
+    static void delete(Context context, int slotId) {
+        final AtomicFile file = getFile(context, slotId);
+        sWriter.execute(new Runnable() {
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    /*
+     * Returns the SET UP MENU command stored for the card in the slot, or null
+     * if there is none or the ICCID is not known yet. A snapshot of another
+     * card or build is deleted.
+     */
+    static CatCmdMessage load(Context context, int slotId) {
+        String iccId = getIccId(slotId);
+        if (iccId == null) {
+            return null;
+        }
+        AtomicFile file = getFile(context, slotId);
+        byte[] data;
+        try {
+            data = file.readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            CatLog.d(TAG, "Cannot read menu of slot " + slotId + ": " + e);
+            return null;
+        }
+        CatCmdMessage cmd = null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                    && Build.FINGERPRINT.equals(in.readUTF()) && iccId.equals(in.readUTF())) {
+                byte[] parcel = new byte[in.readInt()];
+                in.readFully(parcel);
+                cmd = StkRecorder.unmarshall(parcel);
+            }
+        } catch (IOException e) {
+            cmd = null;
+        } catch (RuntimeException e) {
+            cmd = null;
+        }
+        if (cmd == null || cmd.getCmdType() != AppInterface.CommandType.SET_UP_MENU
+                || cmd.getMenu() == null) {
+            CatLog.d(TAG, "Dropping stale menu of slot " + slotId);
+            delete(context, slotId);
+            return null;
+        }
+        return cmd;
+    }
+
+    private static AtomicFile getFile(Context context, int slotId) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_PREFIX + slotId));
+    }
+}
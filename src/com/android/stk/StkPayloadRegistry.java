@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.stk;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Process;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * In-process store for the Menu, Input and TextMessage payloads handed from
+ * StkAppService to its activities. The intent only carries a handle, so the
+ * item and title icons are neither marshalled through the binder nor copied
+ * into the saved instance state.
+ *
+ * An entry lives while a Holder references it. Entries nobody picked up are
+ * bounded per slot and all entries of a slot go away with its session state.
+ * After a restart of the process handles of the previous process resolve to
+ * null, since the pid is part of the handle.
+ */
+abstract class StkPayloadRegistry {
+    static final String EXTRA_HANDLE = "PAYLOAD_HANDLE";
+    static final long NO_HANDLE = 0;
+
+    // Entries of one slot which are not referenced by any activity.
+    private static final int MAX_UNREFERENCED = 4;
+
+    private static final class Entry {
+        final int slotId;
+        final Object payload;
+        int refs;
+
+        Entry(int slotId, Object payload) {
+            this.slotId = slotId;
+            this.payload = payload;
+        }
+    }
+
+    private static final Object sLock = new Object();
+    // Insertion ordered, the oldest entries are evicted first.
+    private static final LinkedHashMap<Long, Entry> sEntries =
+            new LinkedHashMap<Long, Entry>();
+    private static final long sEpoch = (long) Process.myPid() << 32;
+    private static int sNextId = 0;
+    private static int sEvictedCount = 0;
+
+    private StkPayloadRegistry() {}
+
+    /*
+     * Stores the payload for the slot and returns its handle, or NO_HANDLE
+     * for a null payload.
+     */
+    static long put(int slotId, Object payload) {
+        if (payload == null) {
+            return NO_HANDLE;
+        }
+        synchronized (sLock) {
+            long handle = sEpoch | (++sNextId & 0xffffffffL);
+            sEntries.put(handle, new Entry(slotId, payload));
+            trimLocked(slotId);
+            return handle;
+        }
+    }
+
+    static int size() {
+        synchronized (sLock) {
+            return sEntries.size();
+        }
+    }
+
+    /*
+     * Drops all entries of the slot, referenced or not. Holders keep the
+     * payload they already resolved.
+     */
+    static void evictSlot(int slotId) {
+        synchronized (sLock) {
+            Iterator<Entry> it = sEntries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().slotId == slotId) {
+                    it.remove();
+                    sEvictedCount++;
+                }
+            }
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        synchronized (sLock) {
+            int refs = 0;
+            for (Entry entry : sEntries.values()) {
+                refs += entry.refs;
+            }
+            pw.println("  payloads: entries=" + sEntries.size() + " refs=" + refs
+                    + " evicted=" + sEvictedCount);
+        }
+    }
+
+    private static Object acquire(long handle) {
+        synchronized (sLock) {
+            Entry entry = sEntries.get(handle);
+            if (entry == null) {
+                return null;
+            }
+            entry.refs++;
+            return entry.payload;
+        }
+    }
+
+    private static Object peek(long handle) {
+        synchronized (sLock) {
+            Entry entry = sEntries.get(handle);
+            return entry == null ? null : entry.payload;
+        }
+    }
+
+    private static void release(long handle) {
+        synchronized (sLock) {
+            Entry entry = sEntries.get(handle);
+            if (entry != null && --entry.refs <= 0) {
+                sEntries.remove(handle);
+            }
+        }
+    }
+
+    private static void trimLocked(int slotId) {
+        int unreferenced = 0;
+        for (Entry entry : sEntries.values()) {
+            if (entry.slotId == slotId && entry.refs == 0) {
+                unreferenced++;
+            }
+        }
+        Iterator<Entry> it = sEntries.values().iterator();
+        while (unreferenced > MAX_UNREFERENCED && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.slotId == slotId && entry.refs == 0) {
+                it.remove();
+                unreferenced--;
+                sEvictedCount++;
+            }
+        }
+    }
+
+    /**
+     * The reference of one activity to its payload. The reference is kept
+     * until the activity finishes, so an instance the system destroys and
+     * recreates, for a configuration change or otherwise, takes it over
+     * through the saved instance state.
+     */
+    static final class Holder {
+        private final String mKey;
+        private long mHandle = NO_HANDLE;
+        private Object mPayload;
+
+        Holder(String key) {
+            mKey = key;
+        }
+
+        /*
+         * Switches to the handle of the intent, returns the payload or null
+         * when the handle is unknown.
+         */
+        Object bind(Intent intent) {
+            long handle = intent.getLongExtra(EXTRA_HANDLE, NO_HANDLE);
+            if (handle != mHandle) {
+                Object payload = acquire(handle);
+                release(mHandle);
+                mHandle = handle;
+                mPayload = payload;
+            }
+            return mPayload;
+        }
+
+        void save(Bundle outState) {
+            outState.putLong(mKey, mHandle);
+        }
+
+        /*
+         * Takes over the reference the previous instance kept, returns the
+         * payload or null when it did not survive.
+         */
+        Object restore(Bundle savedState) {
+            long handle = savedState.getLong(mKey, NO_HANDLE);
+            if (handle == mHandle) {
+                // Already bound from the intent, drop the inherited reference.
+                if (handle != NO_HANDLE) {
+                    release(handle);
+                }
+            } else {
+                release(mHandle);
+                mHandle = handle;
+                mPayload = peek(handle);
+            }
+            return mPayload;
+        }
+
+        /*
+         * Called from onDestroy(). The reference stays unless the activity is
+         * finishing, a recreated instance may still restore it. Entries left
+         * behind go away with the session state of the slot.
+         */
+        void close(boolean finishing) {
+            if (finishing) {
+                release(mHandle);
+                mHandle = NO_HANDLE;
+            }
+            mPayload = null;
+        }
+    }
+}
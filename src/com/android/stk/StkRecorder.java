@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface;
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.CatLog;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the requests StkAppService receives, so they can be replayed by
+ * StkReplayer. A recording is kept in memory, up to MAX_BYTES, until it is
+ * finished and written to a file.
+ *
+ * File format, big endian: int magic, int version, then one entry per request:
+ * long offset from the start in ms, int slot id, int opcode, and for
+ *   OP_CMD: int length and the marshalled CatCmdMessage parcel,
+ *   OP_CARD_STATUS_CHANGED: boolean card status, int refresh result,
+ *   OP_IDLE_SCREEN: boolean screen idle,
+ *   OP_RESPONSE: int response id, int menu selection, boolean has input,
+ *       if present int input length and boolean input is YES, boolean help,
+ *       boolean confirmed, int choice,
+ *   TERMINAL_RESPONSE: UTF StkResponseMessage.describe() of a response sent
+ *       to the card, only compared by StkReplayer and never replayed.
+ * Other opcodes carry no payload. Like StkHistory, user input text is left out,
+ * a replay types the recorded number of '0' instead.
+ */
+final class StkRecorder {
+    static final int MAGIC = 0x53544b52;
+    static final int VERSION = 2;
+    // Not a StkAppService opcode, marks the terminal responses.
+    static final int TERMINAL_RESPONSE = -1;
+    static final String RESPONSE = "response";
+    private static final char INPUT_PLACEHOLDER = '0';
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+
+    // One request read back from a recording.
+    static final class Entry {
+        final long offset;
+        final Bundle args;
+
+        Entry(long offset, Bundle args) {
+            this.offset = offset;
+            this.args = args;
+        }
+    }
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private int mCount = 0;
+    private int mSkipped = 0;
+
+    StkRecorder() {
+        try {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+        }
+    }
+
+    static boolean isRecorded(int opCode) {
+        switch (opCode) {
+        case StkAppService.OP_CMD:
+        case StkAppService.OP_END_SESSION:
+        case StkAppService.OP_CARD_STATUS_CHANGED:
+        case StkAppService.OP_IDLE_SCREEN:
+        case StkAppService.OP_LOCALE_CHANGED:
+        case StkAppService.OP_RESPONSE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * Appends a request, called on the main thread.
+     */
+    synchronized void record(Bundle args) {
+        int opCode = args.getInt(StkAppService.OPCODE);
+        if (!isRecorded(opCode)) {
+            return;
+        }
+        if (mBuffer.size() >= MAX_BYTES) {
+            mSkipped++;
+            return;
+        }
+        byte[] cmd = null;
+        if (opCode == StkAppService.OP_CMD) {
+            cmd = marshall((CatCmdMessage) args.getParcelable(StkAppService.CMD_MSG));
+            if (cmd == null) {
+                mSkipped++;
+                return;
+            }
+        }
+        try {
+            mOut.writeLong(SystemClock.uptimeMillis() - mStartTime);
+            mOut.writeInt(args.getInt(StkAppService.SLOT_ID));
+            mOut.writeInt(opCode);
+            switch (opCode) {
+            case StkAppService.OP_CMD:
+                mOut.writeInt(cmd.length);
+                mOut.write(cmd);
+                break;
+            case StkAppService.OP_CARD_STATUS_CHANGED:
+                mOut.writeBoolean(args.getBoolean(AppInterface.CARD_STATUS));
+                mOut.writeInt(args.getInt(AppInterface.REFRESH_RESULT));
+                break;
+            case StkAppService.OP_IDLE_SCREEN:
+                mOut.writeBoolean(args.getBoolean(StkAppService.SCREEN_STATUS));
+                break;
+            case StkAppService.OP_RESPONSE:
+                String input = args.getString(StkAppService.INPUT);
+                mOut.writeInt(args.getInt(StkAppService.RES_ID));
+                mOut.writeInt(args.getInt(StkAppService.MENU_SELECTION));
+                mOut.writeBoolean(input != null);
+                if (input != null) {
+                    mOut.writeInt(input.length());
+                    mOut.writeBoolean(StkInputActivity.YES_STR_RESPONSE.equals(input));
+                }
+                mOut.writeBoolean(args.getBoolean(StkAppService.HELP));
+                mOut.writeBoolean(args.getBoolean(StkAppService.CONFIRMATION));
+                mOut.writeInt(args.getInt(StkAppService.CHOICE));
+                break;
+            }
+            mCount++;
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+        }
+    }
+
+    /*
+     * Appends a terminal response, called on the handler thread of the slot.
+     */
+    synchronized void recordResponse(int slotId, StkResponseMessage resMsg) {
+        if (mBuffer.size() >= MAX_BYTES) {
+            mSkipped++;
+            return;
+        }
+        try {
+            mOut.writeLong(SystemClock.uptimeMillis() - mStartTime);
+            mOut.writeInt(slotId);
+            mOut.writeInt(TERMINAL_RESPONSE);
+            mOut.writeUTF(resMsg.describe());
+            mCount++;
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+        }
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    synchronized int getSkipped() {
+        return mSkipped;
+    }
+
+    synchronized byte[] toByteArray() {
+        return mBuffer.toByteArray();
+    }
+
+    /*
+     * Reads back a recording. Throws IOException if it is not one.
+     */
+    static List<Entry> read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an STK recording");
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        while (true) {
+            long offset;
+            try {
+                offset = in.readLong();
+            } catch (EOFException e) {
+                return entries;
+            }
+            Bundle args = new Bundle();
+            args.putInt(StkAppService.SLOT_ID, in.readInt());
+            int opCode = in.readInt();
+            args.putInt(StkAppService.OPCODE, opCode);
+            switch (opCode) {
+            case StkAppService.OP_CMD:
+                byte[] cmd = new byte[in.readInt()];
+                in.readFully(cmd);
+                args.putParcelable(StkAppService.CMD_MSG, unmarshall(cmd));
+                break;
+            case StkAppService.OP_CARD_STATUS_CHANGED:
+                args.putBoolean(AppInterface.CARD_STATUS, in.readBoolean());
+                args.putInt(AppInterface.REFRESH_RESULT, in.readInt());
+                break;
+            case StkAppService.OP_IDLE_SCREEN:
+                args.putBoolean(StkAppService.SCREEN_STATUS, in.readBoolean());
+                break;
+            case StkAppService.OP_RESPONSE:
+                args.putInt(StkAppService.RES_ID, in.readInt());
+                args.putInt(StkAppService.MENU_SELECTION, in.readInt());
+                if (in.readBoolean()) {
+                    args.putString(StkAppService.INPUT, readInput(in));
+                }
+                args.putBoolean(StkAppService.HELP, in.readBoolean());
+                args.putBoolean(StkAppService.CONFIRMATION, in.readBoolean());
+                args.putInt(StkAppService.CHOICE, in.readInt());
+                break;
+            case TERMINAL_RESPONSE:
+                args.putString(RESPONSE, in.readUTF());
+                break;
+            }
+            entries.add(new Entry(offset, args));
+        }
+    }
+
+    private static String readInput(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (in.readBoolean()) {
+            return StkInputActivity.YES_STR_RESPONSE;
+        }
+        char[] input = new char[Math.max(0, length)];
+        Arrays.fill(input, INPUT_PLACEHOLDER);
+        return new String(input);
+    }
+
+    // Returns null if the command can not be flattened, e.g. icons held in ashmem.
+    static byte[] marshall(CatCmdMessage cmd) {
+        if (cmd == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            cmd.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            CatLog.d("StkRecorder", "Can not record " + cmd.getCmdType() + ": " + e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static CatCmdMessage unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return CatCmdMessage.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
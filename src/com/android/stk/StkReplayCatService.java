@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface;
+import com.android.internal.telephony.cat.CatResponseMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the CatService of a slot while StkReplayer replays a recording.
+ * Terminal responses are kept, as StkResponseMessage.describe() lines, instead
+ * of being sent to the card, so they can be compared with the recorded ones.
+ */
+final class StkReplayCatService implements AppInterface {
+    private final int mSlotId;
+    private final List<String> mResponses = new ArrayList<String>();
+
+    StkReplayCatService(int slotId) {
+        mSlotId = slotId;
+    }
+
+    @Override
+    public synchronized void onCmdResponse(CatResponseMessage resMsg) {
+        mResponses.add((resMsg instanceof StkResponseMessage)
+                ? ((StkResponseMessage) resMsg).describe() : String.valueOf(resMsg));
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    int getSlotId() {
+        return mSlotId;
+    }
+
+    synchronized List<String> getResponses() {
+        return new ArrayList<String>(mResponses);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.CatLog;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a recording made by StkRecorder into StkAppService. Only slots without
+ * a card are replayed: their CatService is replaced by a StkReplayCatService, so
+ * no terminal response can reach a card, and the requests of the other slots are
+ * skipped. A live command or card status change on a replayed slot ends the
+ * replay. The recording is loaded on a worker thread, requests are then handed
+ * to the service on its main thread at the recorded pace divided by the
+ * requested speed, or back to back for speed 0. The terminal responses of the
+ * replay are compared with the recorded ones in the report.
+ *
+ * Menu snapshots are not written during a replay. The launchers it installed
+ * go away like those of any missing card, on the next idle screen or boot.
+ */
+final class StkReplayer {
+    // Set on the requests handed over by the replay.
+    static final String REPLAYED = "replayed";
+    // Time given to the handlers to answer the last requests.
+    private static final long DRAIN_TIME = 5 * 1000;
+
+    private final StkAppService mService;
+    private final Handler mHandler;
+    private final int mSlotCount;
+
+    // Accessed on the main thread only.
+    private List<StkRecorder.Entry> mEntries;
+    private List<String>[] mExpected;
+    private float mSpeed;
+    private long mStartTime;
+    private int mNext;
+    private int mDispatched;
+    private int mCommands;
+    private int mSkipped;
+    private int[] mMaxQueueDepth;
+
+    // Null entries for the slots which are not replayed, read by the handlers.
+    private volatile StkReplayCatService[] mStandIns;
+    private volatile boolean mRunning = false;
+    private volatile String mReport = null;
+
+    StkReplayer(StkAppService service, Handler mainHandler, int slotCount) {
+        mService = service;
+        mHandler = mainHandler;
+        mSlotCount = slotCount;
+    }
+
+    /*
+     * Starts replaying the given recording. Returns false if a replay is running.
+     */
+    synchronized boolean start(final File file, final float speed) {
+        if (mRunning) {
+            return false;
+        }
+        mRunning = true;
+        mReport = "loading " + file;
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final List<StkRecorder.Entry> entries = load(file);
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            begin(entries, speed);
+                        }
+                    });
+                } catch (IOException e) {
+                    mReport = "failed to load " + file + ": " + e;
+                    mRunning = false;
+                }
+            }
+        }, "StkReplayLoader").start();
+        return true;
+    }
+
+    void stop() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mEntries != null) {
+                    mHandler.removeCallbacks(mStep);
+                    mHandler.removeCallbacks(mFinish);
+                    finish();
+                }
+            }
+        });
+    }
+
+    /*
+     * Ends the replay right away. Main thread only.
+     */
+    void abort(String reason) {
+        if (mEntries != null) {
+            CatLog.d("StkReplayer", "Replay aborted: " + reason);
+            mHandler.removeCallbacks(mStep);
+            mHandler.removeCallbacks(mFinish);
+            finish();
+            mReport = "aborted, " + reason + "\n" + mReport;
+        }
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    boolean isReplaying(int slotId) {
+        StkReplayCatService[] standIns = mStandIns;
+        return standIns != null && standIns[slotId] != null;
+    }
+
+    String getReport() {
+        return mReport;
+    }
+
+    private static List<StkRecorder.Entry> load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return StkRecorder.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void begin(List<StkRecorder.Entry> entries, float speed) {
+        StkReplayCatService[] standIns = new StkReplayCatService[mSlotCount];
+        int replayed = 0;
+        for (int i = 0; i < mSlotCount; i++) {
+            if (!mService.hasCatService(i)) {
+                standIns[i] = new StkReplayCatService(i);
+                replayed++;
+            }
+        }
+        if (replayed == 0) {
+            mReport = "refused, a card is present on every slot";
+            CatLog.d("StkReplayer", mReport);
+            mRunning = false;
+            return;
+        }
+        mEntries = entries;
+        mSpeed = speed;
+        mNext = 0;
+        mDispatched = 0;
+        mCommands = 0;
+        mSkipped = 0;
+        mMaxQueueDepth = new int[mSlotCount];
+        mExpected = new List[mSlotCount];
+        mStandIns = standIns;
+        for (int i = 0; i < mSlotCount; i++) {
+            if (standIns[i] != null) {
+                mExpected[i] = new ArrayList<String>();
+                mService.setCatServiceOverride(i, standIns[i]);
+            }
+        }
+        mService.resetLatencyTrackers();
+        mReport = "replaying " + entries.size() + " requests on " + replayed + " slots";
+        CatLog.d("StkReplayer", mReport + " at speed " + speed);
+        mStartTime = SystemClock.uptimeMillis();
+        mStep.run();
+    }
+
+    private long dueTime(StkRecorder.Entry entry) {
+        return (mSpeed > 0) ? mStartTime + (long) (entry.offset / mSpeed) : 0;
+    }
+
+    // Hands over the requests which are due, then waits for the next one.
+    private final Runnable mStep = new Runnable() {
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            while (mNext < mEntries.size() && dueTime(mEntries.get(mNext)) <= now) {
+                dispatch(mEntries.get(mNext++));
+            }
+            if (mNext < mEntries.size()) {
+                mHandler.postAtTime(mStep, dueTime(mEntries.get(mNext)));
+            } else {
+                mHandler.postDelayed(mFinish, DRAIN_TIME);
+            }
+        }
+    };
+
+    private final Runnable mFinish = new Runnable() {
+        public void run() {
+            finish();
+        }
+    };
+
+    private void dispatch(StkRecorder.Entry entry) {
+        int slotId = entry.args.getInt(StkAppService.SLOT_ID);
+        if (slotId < 0 || slotId >= mSlotCount || mStandIns[slotId] == null) {
+            mSkipped++;
+            return;
+        }
+        int opCode = entry.args.getInt(StkAppService.OPCODE);
+        if (opCode == StkRecorder.TERMINAL_RESPONSE) {
+            mExpected[slotId].add(entry.args.getString(StkRecorder.RESPONSE));
+            return;
+        }
+        entry.args.putBoolean(REPLAYED, true);
+        if (opCode == StkAppService.OP_CMD) {
+            entry.args.putLong(StkAppService.RECEIVE_TIME, SystemClock.elapsedRealtimeNanos());
+            mCommands++;
+        }
+        mService.handleRequest(entry.args);
+        mDispatched++;
+        int depth = mService.getQueueDepth(slotId);
+        if (depth > mMaxQueueDepth[slotId]) {
+            mMaxQueueDepth[slotId] = depth;
+        }
+    }
+
+    private void finish() {
+        long duration = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+        StringBuilder report = new StringBuilder();
+        report.append("requests=").append(mEntries.size())
+                .append(" dispatched=").append(mDispatched)
+                .append(" skipped=").append(mSkipped)
+                .append(" commands=").append(mCommands)
+                .append(" duration_ms=").append(duration)
+                .append(" cmd_per_s=").append(mCommands * 1000L / duration);
+        for (int i = 0; i < mSlotCount; i++) {
+            report.append("\n  slot=").append(i);
+            if (mStandIns[i] == null) {
+                report.append(" not replayed, card present");
+                continue;
+            }
+            StkLatencyTracker tracker = mService.getLatencyTracker(i);
+            List<String> responses = mStandIns[i].getResponses();
+            report.append(" responses=").append(responses.size())
+                    .append(" expected=").append(mExpected[i].size());
+            appendMismatch(report, mExpected[i], responses);
+            report.append(" max_queue_depth=").append(mMaxQueueDepth[i])
+                    .append(" p50_us=").append(tracker.getOverallPercentile(
+                            StkLatencyTracker.STAGE_RESPONSE, 50))
+                    .append(" p99_us=").append(tracker.getOverallPercentile(
+                            StkLatencyTracker.STAGE_RESPONSE, 99));
+            mService.setCatServiceOverride(i, null);
+        }
+        mEntries = null;
+        mExpected = null;
+        mStandIns = null;
+        mReport = report.toString();
+        CatLog.d("StkReplayer", "Replay done: " + mReport);
+        mRunning = false;
+    }
+
+    // Appends the number of responses which differ from the recording, and the first one.
+    private static void appendMismatch(StringBuilder report, List<String> expected,
+            List<String> responses) {
+        int count = Math.max(expected.size(), responses.size());
+        int mismatches = 0;
+        int first = -1;
+        for (int i = 0; i < count; i++) {
+            String want = (i < expected.size()) ? expected.get(i) : null;
+            String got = (i < responses.size()) ? responses.get(i) : null;
+            if (want == null || !want.equals(got)) {
+                mismatches++;
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        report.append(" mismatches=").append(mismatches);
+        if (first >= 0) {
+            report.append(" first_mismatch=#").append(first)
+                    .append(" expected=\"").append(first < expected.size()
+                            ? expected.get(first) : "-")
+                    .append("\" got=\"").append(first < responses.size()
+                            ? responses.get(first) : "-").append('"');
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import android.os.Bundle;
+
+/**
+ * User response to the current proactive command, posted by the STK activities
+ * straight to the ServiceHandler of the slot. The Bundle form is only used when
+ * the response has to go through startService().
+ */
+final class StkResponse {
+    // OP_RESPONSE, or OP_STOP_TONE_USER when the user stops a tone.
+    final int opCode;
+    final int resId;
+    final int slotId;
+    final int menuSelection;
+    final String input;
+    final boolean help;
+    final boolean confirmed;
+    final int choice;
+
+    private StkResponse(int opCode, int resId, int slotId, int menuSelection, String input,
+            boolean help, boolean confirmed, int choice) {
+        this.opCode = opCode;
+        this.resId = resId;
+        this.slotId = slotId;
+        this.menuSelection = menuSelection;
+        this.input = input;
+        this.help = help;
+        this.confirmed = confirmed;
+        this.choice = choice;
+    }
+
+    static StkResponse of(int resId, int slotId) {
+        return new StkResponse(StkAppService.OP_RESPONSE, resId, slotId, 0, null, false, false,
+                0);
+    }
+
+    static StkResponse menuSelection(int slotId, int itemId, boolean help) {
+        return new StkResponse(StkAppService.OP_RESPONSE, StkAppService.RES_ID_MENU_SELECTION,
+                slotId, itemId, null, help, false, 0);
+    }
+
+    static StkResponse input(int slotId, String input, boolean help) {
+        return new StkResponse(StkAppService.OP_RESPONSE, StkAppService.RES_ID_INPUT, slotId, 0,
+                input, help, false, 0);
+    }
+
+    static StkResponse confirm(int resId, int slotId, boolean confirmed) {
+        return new StkResponse(StkAppService.OP_RESPONSE, resId, slotId, 0, null, false,
+                confirmed, 0);
+    }
+
+    static StkResponse choice(int slotId, int choice) {
+        return new StkResponse(StkAppService.OP_RESPONSE, StkAppService.RES_ID_CHOICE, slotId,
+                0, null, false, false, choice);
+    }
+
+    // The user stopped the tone of the current PLAY TONE.
+    static StkResponse stopTone(int slotId) {
+        return new StkResponse(StkAppService.OP_STOP_TONE_USER, 0, slotId, 0, null, false,
+                false, 0);
+    }
+
+    static StkResponse fromBundle(Bundle args) {
+        return new StkResponse(StkAppService.OP_RESPONSE, args.getInt(StkAppService.RES_ID),
+                args.getInt(StkAppService.SLOT_ID),
+                args.getInt(StkAppService.MENU_SELECTION),
+                args.getString(StkAppService.INPUT),
+                args.getBoolean(StkAppService.HELP, false),
+                args.getBoolean(StkAppService.CONFIRMATION),
+                args.getInt(StkAppService.CHOICE));
+    }
+
+    @Override
+    public String toString() {
+        // The input text is left out, it may hold user secrets.
+        return "op=" + opCode + " resId=" + resId + " selection=" + menuSelection + " help=" + help
+                + " confirmed=" + confirmed + " choice=" + choice
+                + " inputLength=" + (input != null ? input.length() : -1);
+    }
+
+    Bundle toBundle() {
+        Bundle args = new Bundle();
+        args.putInt(StkAppService.OPCODE, opCode);
+        args.putInt(StkAppService.RES_ID, resId);
+        args.putInt(StkAppService.SLOT_ID, slotId);
+        args.putInt(StkAppService.MENU_SELECTION, menuSelection);
+        if (input != null) {
+            args.putString(StkAppService.INPUT, input);
+        }
+        args.putBoolean(StkAppService.HELP, help);
+        args.putBoolean(StkAppService.CONFIRMATION, confirmed);
+        args.putInt(StkAppService.CHOICE, choice);
+        return args;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatCmdMessage;
+import com.android.internal.telephony.cat.CatResponseMessage;
+import com.android.internal.telephony.cat.ResultCode;
+
+/**
+ * CatResponseMessage which keeps what is set on it, so a terminal response can
+ * be journaled, recorded and compared without reading into CatResponseMessage.
+ * describe(), and so the recordings, only carry the length of the GET INPUT /
+ * GET INKEY text, never the text.
+ */
+final class StkResponseMessage extends CatResponseMessage {
+    // The command answered.
+    final CatCmdMessage cmd;
+    final CommandType cmdType;
+    // Same default as CatResponseMessage.
+    ResultCode resultCode = ResultCode.OK;
+    int menuSelection = -1;
+    String input = null;
+    int inputLength = -1;
+    Boolean yesNo = null;
+    Boolean confirmation = null;
+    int event = -1;
+
+    StkResponseMessage(CatCmdMessage cmdMsg) {
+        super(cmdMsg);
+        cmd = cmdMsg;
+        cmdType = (cmdMsg != null) ? cmdMsg.getCmdType() : null;
+    }
+
+    @Override
+    public void setResultCode(ResultCode resCode) {
+        resultCode = resCode;
+        super.setResultCode(resCode);
+    }
+
+    @Override
+    public void setMenuSelection(int selection) {
+        menuSelection = selection;
+        super.setMenuSelection(selection);
+    }
+
+    @Override
+    public void setInput(String input) {
+        this.input = input;
+        inputLength = (input != null) ? input.length() : -1;
+        super.setInput(input);
+    }
+
+    @Override
+    public void setYesNo(boolean yesNo) {
+        this.yesNo = yesNo;
+        super.setYesNo(yesNo);
+    }
+
+    @Override
+    public void setConfirmation(boolean confirm) {
+        confirmation = confirm;
+        super.setConfirmation(confirm);
+    }
+
+    @Override
+    public void setEventDownload(int event, byte[] addedInfo) {
+        this.event = event;
+        super.setEventDownload(event, addedInfo);
+    }
+
+    /*
+     * Returns the response in one line, equal for equal responses, e.g.
+     * "SELECT_ITEM OK item=3" or "GET_INPUT OK input_length=4".
+     */
+    String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(cmdType).append(' ').append(resultCode);
+        if (menuSelection != -1) {
+            sb.append(" item=").append(menuSelection);
+        }
+        if (inputLength != -1) {
+            sb.append(" input_length=").append(inputLength);
+        }
+        if (yesNo != null) {
+            sb.append(" yes_no=").append(yesNo);
+        }
+        if (confirmation != null) {
+            sb.append(" confirmation=").append(confirmation);
+        }
+        if (event != -1) {
+            sb.append(" event=").append(event);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk;
+
+import com.android.internal.telephony.cat.AppInterface.CommandType;
+import com.android.internal.telephony.cat.CatCmdMessage;
+
+import android.os.Trace;
+import android.telephony.TelephonyManager;
+
+/**
+ * Systrace helpers for the STK app, under the RIL tag of the phone process.
+ *
+ * Every slot gets two async tracks. "STK session <slot>" spans a proactive
+ * command from the CAT_CMD_ACTION broadcast to its terminal response. "STK UI
+ * <slot>" spans from the start of an STK activity to its onResume(). A slot
+ * handles one session at a time, a new one ends the previous slice.
+ */
+abstract class StkTrace {
+    private static final long TAG = Trace.TRACE_TAG_RIL;
+    // Same slot count as StkAppService.
+    private static final int MAX_SLOTS = Math.max(1, TelephonyManager.getDefault().getSimCount());
+
+    private static final String[] SESSION_NAMES = new String[MAX_SLOTS];
+    private static final String[] UI_NAMES = new String[MAX_SLOTS];
+    private static final String[] CMD_NAMES = new String[CommandType.values().length];
+    static {
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            SESSION_NAMES[i] = "STK session " + i;
+            UI_NAMES[i] = "STK UI " + i;
+        }
+        for (CommandType type : CommandType.values()) {
+            CMD_NAMES[type.ordinal()] = "handleCmd " + type.name();
+        }
+    }
+
+    // Cookie of the open slices per slot, 0 if none.
+    private static final int[] sSessionCookie = new int[MAX_SLOTS];
+    private static final int[] sUiCookie = new int[MAX_SLOTS];
+    private static int sNextCookie = 1;
+
+    private StkTrace() {}
+
+    static void begin(String name) {
+        Trace.traceBegin(TAG, name);
+    }
+
+    static void end() {
+        Trace.traceEnd(TAG);
+    }
+
+    static void beginCmd(CatCmdMessage cmd) {
+        if (cmd == null || cmd.getCmdType() == null) {
+            Trace.traceBegin(TAG, "handleCmd");
+        } else {
+            Trace.traceBegin(TAG, CMD_NAMES[cmd.getCmdType().ordinal()]);
+        }
+    }
+
+    /*
+     * Called by StkCmdReceiver when a proactive command is broadcast.
+     */
+    static synchronized void beginSession(int slotId) {
+        if (!isTracked(slotId)) {
+            return;
+        }
+        endSessionLocked(slotId);
+        sSessionCookie[slotId] = nextCookie();
+        Trace.asyncTraceBegin(TAG, SESSION_NAMES[slotId], sSessionCookie[slotId]);
+    }
+
+    /*
+     * Called when the terminal response of the slot is sent.
+     */
+    static synchronized void endSession(int slotId) {
+        if (isTracked(slotId)) {
+            endSessionLocked(slotId);
+        }
+    }
+
+    /*
+     * Called right before an STK activity is started for the slot.
+     */
+    static synchronized void beginUi(int slotId) {
+        if (!isTracked(slotId)) {
+            return;
+        }
+        endUiLocked(slotId);
+        sUiCookie[slotId] = nextCookie();
+        Trace.asyncTraceBegin(TAG, UI_NAMES[slotId], sUiCookie[slotId]);
+    }
+
+    /*
+     * Called from onResume() of the STK activities.
+     */
+    static synchronized void onUiResumed(int slotId) {
+        if (isTracked(slotId)) {
+            endUiLocked(slotId);
+        }
+    }
+
+    private static void endSessionLocked(int slotId) {
+        endUiLocked(slotId);
+        if (sSessionCookie[slotId] != 0) {
+            Trace.asyncTraceEnd(TAG, SESSION_NAMES[slotId], sSessionCookie[slotId]);
+            sSessionCookie[slotId] = 0;
+        }
+    }
+
+    private static void endUiLocked(int slotId) {
+        if (sUiCookie[slotId] != 0) {
+            Trace.asyncTraceEnd(TAG, UI_NAMES[slotId], sUiCookie[slotId]);
+            sUiCookie[slotId] = 0;
+        }
+    }
+
+    private static int nextCookie() {
+        int cookie = sNextCookie++;
+        if (sNextCookie == 0) {
+            sNextCookie = 1;
+        }
+        return cookie;
+    }
+
+    private static boolean isTracked(int slotId) {
+        return slotId >= 0 && slotId < MAX_SLOTS;
+    }
+}
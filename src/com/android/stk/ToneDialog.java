@@ -41,6 +41,8 @@ import com.android.internal.telephony.cat.CatLog;
  */
 public class ToneDialog extends Activity {
     TextMessage toneMsg = null;
+    private final StkPayloadRegistry.Holder mTonePayload =
+            new StkPayloadRegistry.Holder("TONE_HANDLE");
     private int mSlotId = 0;
 
     @Override
@@ -48,6 +50,13 @@ public class ToneDialog extends Activity {
         super.onCreate(icicle);
 
         initFromIntent(getIntent());
+        if (icicle != null) {
+            toneMsg = (TextMessage) mTonePayload.restore(icicle);
+        }
+        if (toneMsg == null) {
+            finish();
+            return;
+        }
         // Register receiver
         IntentFilter filter = new IntentFilter();
         filter.addAction(StkAppService.FINISH_TONE_ACTIVITY_ACTION);
@@ -72,13 +81,35 @@ public class ToneDialog extends Activity {
 
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        StkForegroundTracker.setVisibility(this, true);
+        StkTrace.onUiResumed(mSlotId);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        StkForegroundTracker.setVisibility(this, false);
+    }
+
     @Override
     protected void onDestroy() {
-        // Unregister receiver
-        unregisterReceiver(mFinishActivityReceiver);
+        if (toneMsg != null) {
+            // Unregister receiver
+            unregisterReceiver(mFinishActivityReceiver);
+        }
+        mTonePayload.close(isFinishing());
         super.onDestroy();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mTonePayload.save(outState);
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         switch (keyCode) {
@@ -116,16 +147,14 @@ public class ToneDialog extends Activity {
     private void initFromIntent(Intent intent) {
         if (intent == null) {
             finish();
+            return;
         }
-        toneMsg = intent.getParcelableExtra("TEXT");
+        toneMsg = (TextMessage) mTonePayload.bind(intent);
         mSlotId = intent.getIntExtra(StkAppService.SLOT_ID, 0);
     }
 
     // Send stop playing tone to StkAppService, when user presses back key.
     private void sendStopTone() {
-        Bundle args = new Bundle();
-        args.putInt(StkAppService.OPCODE, StkAppService.OP_STOP_TONE_USER);
-        args.putInt(StkAppService.SLOT_ID, mSlotId);
-        startService(new Intent(this, StkAppService.class).putExtras(args));
+        StkAppService.postResponse(this, StkResponse.stopTone(mSlotId));
     }
 }
@@ -0,0 +1,3 @@
+# Copyright (c) 2014, The Linux Foundation. All rights reserved.
+
+include $(call all-subdir-makefiles)
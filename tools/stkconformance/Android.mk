@@ -0,0 +1,16 @@
+# Copyright (c) 2014, The Linux Foundation. All rights reserved.
+#
+# Host script running the StkConformance sequences on a connected userdebug
+# or eng device, it exits non-zero unless every step passed:
+#   stk_conformance [-s SERIAL] [-t TIMEOUT_S] [SLOT]
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := stk_conformance
+LOCAL_MODULE_TAGS := optional
+LOCAL_MODULE_CLASS := EXECUTABLES
+LOCAL_IS_HOST_MODULE := true
+LOCAL_SRC_FILES := stk_conformance.sh
+
+include $(BUILD_PREBUILT)
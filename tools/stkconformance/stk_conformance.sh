@@ -0,0 +1,106 @@
+#!/bin/sh
+#
+# Copyright (c) 2014, The Linux Foundation. All rights reserved.
+#
+# Runs the StkConformance sequences on a connected userdebug or eng device
+# and exits 0 only if the report ends with result=PASS:
+#   stk_conformance [-s SERIAL] [-t TIMEOUT_S] [SLOT]
+#
+# The simulator backend is selected for the run, which restarts the
+# framework, and the previous backend is put back afterwards. Exit codes:
+# 0 all steps passed, 1 a step failed, 2 bad usage, 3 device or service
+# not ready, 4 the run did not finish within the timeout.
+
+SERVICE=com.android.stk/.StkAppService
+BACKEND_PROP=persist.radio.stk.backend
+ADB=adb
+TIMEOUT=600
+SLOT=0
+
+usage() {
+    echo "usage: $0 [-s SERIAL] [-t TIMEOUT_S] [SLOT]" >&2
+    exit 2
+}
+
+while getopts "s:t:" opt; do
+    case $opt in
+    s) ADB="adb -s $OPTARG" ;;
+    t) TIMEOUT=$OPTARG ;;
+    *) usage ;;
+    esac
+done
+shift $((OPTIND - 1))
+[ $# -le 1 ] || usage
+[ $# -eq 1 ] && SLOT=$1
+
+# The device shell ends lines with \r.
+device() {
+    $ADB shell "$@" | tr -d '\r'
+}
+
+stk_dump() {
+    device dumpsys activity service $SERVICE "$@"
+}
+
+# Restarts the framework and waits for the boot to complete.
+restart() {
+    device stop
+    device start
+    $ADB wait-for-device
+    waited=0
+    while [ "$(device getprop sys.boot_completed)" != "1" ]; do
+        [ $waited -ge 300 ] && return 1
+        sleep 5
+        waited=$((waited + 5))
+    done
+}
+
+restore_backend() {
+    echo "Restoring $BACKEND_PROP=$PREVIOUS_BACKEND"
+    device setprop $BACKEND_PROP "$PREVIOUS_BACKEND"
+    restart
+}
+
+$ADB root > /dev/null && $ADB wait-for-device || exit 3
+PREVIOUS_BACKEND=$(device getprop $BACKEND_PROP)
+if [ "$PREVIOUS_BACKEND" != "sim" ]; then
+    echo "Selecting the simulator backend"
+    device setprop $BACKEND_PROP sim
+    trap restore_backend EXIT
+    restart || { echo "Device did not boot" >&2; exit 3; }
+fi
+
+# StkAppService is started on boot, give it time to load the simulator.
+waited=0
+until stk_dump --conformance | grep -q "^result="; do
+    if [ $waited -ge 60 ]; then
+        echo "StkAppService has no simulator:" >&2
+        stk_dump --conformance >&2
+        exit 3
+    fi
+    sleep 5
+    waited=$((waited + 5))
+done
+
+started=$(stk_dump --conformance run "$SLOT")
+echo "$started"
+case "$started" in
+"Conformance run started"*) ;;
+*) exit 3 ;;
+esac
+
+waited=0
+while stk_dump --conformance | grep -q "^result=RUNNING"; do
+    if [ $waited -ge "$TIMEOUT" ]; then
+        echo "Conformance run did not finish within ${TIMEOUT}s" >&2
+        stk_dump --conformance
+        exit 4
+    fi
+    sleep 5
+    waited=$((waited + 5))
+done
+
+report=$(stk_dump --conformance)
+echo "$report"
+echo "$report" | grep -q "^result=PASS" || exit 1
+exit 0
@@ -0,0 +1,15 @@
+# Copyright (c) 2014, The Linux Foundation. All rights reserved.
+#
+# Host tool summing up StkJournal captures:
+#   java -jar $ANDROID_HOST_OUT/framework/stkjournal.jar [LABEL=]PATH ...
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := stkjournal
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_JAR_MANIFEST := manifest.txt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk.journal;
+
+/**
+ * Names of the proactive command types of TS 102 223 journaled by the
+ * application, the values of AppInterface.CommandType.
+ */
+abstract class CommandTypes {
+    private static final String[] NAMES = new String[256];
+
+    static {
+        NAMES[0x01] = "REFRESH";
+        NAMES[0x05] = "SET_UP_EVENT_LIST";
+        NAMES[0x10] = "SET_UP_CALL";
+        NAMES[0x11] = "SEND_SS";
+        NAMES[0x12] = "SEND_USSD";
+        NAMES[0x13] = "SEND_SMS";
+        NAMES[0x14] = "SEND_DTMF";
+        NAMES[0x15] = "LAUNCH_BROWSER";
+        NAMES[0x20] = "PLAY_TONE";
+        NAMES[0x21] = "DISPLAY_TEXT";
+        NAMES[0x22] = "GET_INKEY";
+        NAMES[0x23] = "GET_INPUT";
+        NAMES[0x24] = "SELECT_ITEM";
+        NAMES[0x25] = "SET_UP_MENU";
+        NAMES[0x26] = "PROVIDE_LOCAL_INFORMATION";
+        NAMES[0x28] = "SET_UP_IDLE_MODE_TEXT";
+        NAMES[0x40] = "OPEN_CHANNEL";
+        NAMES[0x41] = "CLOSE_CHANNEL";
+        NAMES[0x42] = "RECEIVE_DATA";
+        NAMES[0x43] = "SEND_DATA";
+        NAMES[0x44] = "GET_CHANNEL_STATUS";
+        NAMES[0x70] = "ACTIVATE";
+    }
+
+    private CommandTypes() {}
+
+    static String name(int type) {
+        String name = NAMES[type & 0xff];
+        return (name != null) ? name : String.format("0x%02x", type);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Host tool summing up StkJournal captures, see usage(). Inputs are read
+ * one after the other as streams, so fleet dumps of any size run in the
+ * memory of the statistics.
+ */
+public final class JournalAnalyzer {
+    private JournalAnalyzer() {}
+
+    public static void main(String[] args) {
+        if (args.length == 0 || "--help".equals(args[0]) || "-h".equals(args[0])) {
+            usage(System.out);
+            System.exit(args.length == 0 ? 1 : 0);
+        }
+        Map<String, JournalStats> builds = new LinkedHashMap<String, JournalStats>();
+        int failures = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String label = (eq > 0) ? arg.substring(0, eq) : "all";
+            String path = (eq > 0) ? arg.substring(eq + 1) : arg;
+            JournalStats stats = builds.get(label);
+            if (stats == null) {
+                stats = new JournalStats(label);
+                builds.put(label, stats);
+            }
+            failures += read(new JournalReader(stats), path);
+        }
+        for (JournalStats stats : builds.values()) {
+            stats.print(System.out);
+            System.out.println();
+        }
+        if (builds.size() > 1) {
+            compare(System.out, new ArrayList<JournalStats>(builds.values()));
+        }
+        System.exit(failures > 0 ? 2 : 0);
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("usage: stkjournal [LABEL=]PATH ...");
+        out.println();
+        out.println("Sums up STK journals per slot and command type: response latency");
+        out.println("percentiles, queue waits, session durations, timeout and");
+        out.println("NO_RESPONSE_FROM_USER rates.");
+        out.println();
+        out.println("PATH is a journal file pulled from a device (stk_journal.bin, files");
+        out.println("may be concatenated), a text file holding 'dumpsys ... --journal'");
+        out.println("output such as a bugreport, a directory of those, or - for stdin.");
+        out.println("Any of them may be gzipped. Inputs with the same LABEL are summed up");
+        out.println("together, several labels are compared against the first one.");
+    }
+
+    /*
+     * Reads a file or all files below a directory, returns the number of
+     * inputs which could not be read.
+     */
+    private static int read(JournalReader reader, String path) {
+        if ("-".equals(path)) {
+            return read(reader, "stdin", System.in);
+        }
+        File file = new File(path);
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names == null) {
+                System.err.println(path + ": cannot list");
+                return 1;
+            }
+            Arrays.sort(names);
+            int failures = 0;
+            for (String name : names) {
+                failures += read(reader, new File(file, name).getPath());
+            }
+            return failures;
+        }
+        try {
+            return read(reader, path, new FileInputStream(file));
+        } catch (IOException e) {
+            System.err.println(path + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static int read(JournalReader reader, String source, InputStream in) {
+        try {
+            reader.read(source, in);
+            return 0;
+        } catch (IOException e) {
+            System.err.println(source + ": " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static void compare(PrintStream out, List<JournalStats> builds) {
+        JournalStats base = builds.get(0);
+        out.println("== compared with " + base.label + ", response latency p50/p99 in ms");
+        TreeSet<Integer> keys = new TreeSet<Integer>();
+        for (JournalStats stats : builds) {
+            keys.addAll(stats.getStats().keySet());
+        }
+        for (int key : keys) {
+            StringBuilder line = new StringBuilder(String.format("%-4d %-26s", key >> 8,
+                    CommandTypes.name(key & 0xff)));
+            JournalStats.TypeStats baseStats = base.getStats().get(key);
+            for (JournalStats stats : builds) {
+                JournalStats.TypeStats typeStats = stats.getStats().get(key);
+                if (typeStats == null || typeStats.responses == 0) {
+                    line.append(String.format(" %s=-", stats.label));
+                    continue;
+                }
+                long p50 = typeStats.latency.getPercentile(50);
+                long p99 = typeStats.latency.getPercentile(99);
+                line.append(String.format(" %s=%s/%s", stats.label, JournalStats.millis(p50),
+                        JournalStats.millis(p99)));
+                if (stats != base && baseStats != null && baseStats.responses > 0) {
+                    long baseP99 = baseStats.latency.getPercentile(99);
+                    if (baseP99 > 0) {
+                        line.append(String.format("(%+.0f%%)", 100.0 * (p99 - baseP99) / baseP99));
+                    }
+                }
+            }
+            out.println(line);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the records of StkJournal captures to a Listener. A capture is
+ * either journal files as mapped on the device, several of them may be
+ * concatenated, or text holding the output of "dumpsys ... --journal", e.g.
+ * a bugreport. Both may be gzipped. Memory use is bounded by the largest
+ * slot ring, whatever the size of the capture.
+ */
+final class JournalReader {
+    interface Listener {
+        /*
+         * Called before the records of a slot ring, the records of one ring
+         * come from one device in the order they were made.
+         */
+        void onSection(String source, int slotId);
+
+        void onRecord(int slotId, int kind, int type, int resId, int result,
+                long elapsedMicros, int detail);
+    }
+
+    // Journal format, must match com.android.stk.StkJournal.
+    static final int MAGIC = 0x53544b4a;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SLOT_HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 24;
+
+    static final int KIND_CMD = 1;
+    static final int KIND_RESPONSE = 2;
+    static final int KIND_SESSION_END = 3;
+    static final int KIND_EVENT = 4;
+    static final int KIND_DROPPED = 5;
+    static final int NONE = 0xff;
+
+    static final String[] KIND_NAMES = { "-", "cmd", "response", "session_end", "event",
+            "dropped" };
+
+    static final int MAX_SLOTS = 16;
+    private static final int MAX_CAPACITY = 65536;
+    private static final String TEXT_SECTION = "journal slot=";
+
+    private final Listener mListener;
+    // Ring of the slot being read, reused.
+    private byte[] mRing = new byte[0];
+
+    JournalReader(Listener listener) {
+        mListener = listener;
+    }
+
+    void read(String source, InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(2);
+        int b0 = buffered.read();
+        int b1 = buffered.read();
+        buffered.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            buffered = new BufferedInputStream(new GZIPInputStream(buffered, 1 << 16), 1 << 16);
+        }
+        buffered.mark(4);
+        DataInputStream data = new DataInputStream(buffered);
+        int magic;
+        try {
+            magic = data.readInt();
+        } catch (EOFException e) {
+            return;
+        }
+        buffered.reset();
+        if (magic == MAGIC) {
+            readBinary(source, data);
+        } else {
+            readText(source, new BufferedReader(new InputStreamReader(buffered, "UTF-8")));
+        }
+    }
+
+    private void readBinary(String source, DataInputStream in) throws IOException {
+        while (true) {
+            int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            int version = in.readInt();
+            int slotCount = in.readInt();
+            int capacity = in.readInt();
+            int recordSize = in.readInt();
+            in.readFully(new byte[HEADER_SIZE - 20]);
+            if (magic != MAGIC || version != VERSION || recordSize != RECORD_SIZE
+                    || slotCount < 1 || slotCount > MAX_SLOTS
+                    || capacity < 1 || capacity > MAX_CAPACITY) {
+                throw new IOException(source + ": bad journal header");
+            }
+            if (mRing.length < capacity * RECORD_SIZE) {
+                mRing = new byte[capacity * RECORD_SIZE];
+            }
+            for (int slotId = 0; slotId < slotCount; slotId++) {
+                long sequence = in.readLong();
+                in.readLong();
+                in.readFully(mRing, 0, capacity * RECORD_SIZE);
+                mListener.onSection(source, slotId);
+                for (long n = Math.max(0, sequence - capacity); n < sequence; n++) {
+                    decode(slotId, (int) (n % capacity) * RECORD_SIZE);
+                }
+            }
+        }
+    }
+
+    private void decode(int slotId, int offset) {
+        byte[] ring = mRing;
+        mListener.onRecord(slotId, ring[offset + 16] & 0xff, ring[offset + 17] & 0xff,
+                ring[offset + 18] & 0xff, ring[offset + 19] & 0xff,
+                getLong(ring, offset + 8), getInt(ring, offset + 20));
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return ((long) getInt(b, offset) << 32) | (getInt(b, offset + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    /*
+     * Reads "journal slot=N ..." sections and the record lines following
+     * them, other lines are skipped.
+     */
+    private void readText(String source, BufferedReader in) throws IOException {
+        int slotId = -1;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(TEXT_SECTION)) {
+                int end = line.indexOf(' ', TEXT_SECTION.length());
+                try {
+                    slotId = Integer.parseInt(line.substring(TEXT_SECTION.length(),
+                            (end > 0) ? end : line.length()));
+                } catch (NumberFormatException e) {
+                    slotId = -1;
+                    continue;
+                }
+                if (slotId < 0 || slotId >= MAX_SLOTS) {
+                    slotId = -1;
+                    continue;
+                }
+                mListener.onSection(source, slotId);
+            } else if (slotId >= 0 && line.contains(" elapsed=")) {
+                parseRecord(slotId, line);
+            } else {
+                slotId = -1;
+            }
+        }
+    }
+
+    private void parseRecord(int slotId, String line) {
+        long elapsed = -1;
+        int kind = -1;
+        int type = NONE;
+        int resId = NONE;
+        int result = NONE;
+        int detail = -1;
+        try {
+            for (String token : line.split(" ")) {
+                int eq = token.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = token.substring(0, eq);
+                String value = token.substring(eq + 1);
+                if ("elapsed".equals(key)) {
+                    elapsed = Long.parseLong(value);
+                } else if ("kind".equals(key)) {
+                    kind = kindOf(value);
+                } else if ("type".equals(key)) {
+                    type = Integer.parseInt(value, 16);
+                } else if ("res_id".equals(key)) {
+                    resId = Integer.parseInt(value, 16);
+                } else if ("result".equals(key)) {
+                    result = Integer.parseInt(value, 16);
+                } else if ("detail".equals(key)) {
+                    detail = Integer.parseInt(value);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (elapsed >= 0 && kind > 0) {
+            mListener.onRecord(slotId, kind, type, resId, result, elapsed, detail);
+        }
+    }
+
+    private static int kindOf(String name) {
+        for (int i = 1; i < KIND_NAMES.length; i++) {
+            if (KIND_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+
+package com.android.stk.journal;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of the journals of one build, per slot and command type. Only
+ * histograms and counters are kept, so the size is bounded by the number of
+ * slots and command types.
+ */
+final class JournalStats implements JournalReader.Listener {
+    // Response ids of com.android.stk.StkAppService.
+    private static final int RES_ID_TIMEOUT = 20;
+    // ResultCode.NO_RESPONSE_FROM_USER
+    private static final int RESULT_NO_RESPONSE_FROM_USER = 0x12;
+
+    static final class TypeStats {
+        final Histogram latency = new Histogram();
+        final Histogram wait = new Histogram();
+        long commands;
+        long responses;
+        long timeouts;
+        long noResponse;
+        long dropped;
+    }
+
+    final String label;
+    private final Map<Integer, TypeStats> mStats = new TreeMap<Integer, TypeStats>();
+    private final Histogram[] mSessions = new Histogram[JournalReader.MAX_SLOTS];
+    // Elapsed time of the first command of the open session per slot, or -1.
+    private final long[] mSessionStart = new long[JournalReader.MAX_SLOTS];
+    private long mSections = 0;
+    private long mRecords = 0;
+
+    JournalStats(String label) {
+        this.label = label;
+        for (int i = 0; i < JournalReader.MAX_SLOTS; i++) {
+            mSessions[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void onSection(String source, int slotId) {
+        mSections++;
+        mSessionStart[slotId] = -1;
+    }
+
+    @Override
+    public void onRecord(int slotId, int kind, int type, int resId, int result,
+            long elapsedMicros, int detail) {
+        mRecords++;
+        switch (kind) {
+        case JournalReader.KIND_CMD: {
+            TypeStats stats = get(slotId, type);
+            stats.commands++;
+            stats.wait.record(detail);
+            if (mSessionStart[slotId] < 0) {
+                mSessionStart[slotId] = elapsedMicros;
+            }
+            break;
+        }
+        case JournalReader.KIND_RESPONSE: {
+            TypeStats stats = get(slotId, type);
+            stats.responses++;
+            stats.latency.record(detail);
+            if (resId == RES_ID_TIMEOUT) {
+                stats.timeouts++;
+            }
+            if (result == RESULT_NO_RESPONSE_FROM_USER) {
+                stats.noResponse++;
+            }
+            break;
+        }
+        case JournalReader.KIND_DROPPED:
+            get(slotId, type).dropped++;
+            break;
+        case JournalReader.KIND_SESSION_END:
+            if (mSessionStart[slotId] >= 0 && elapsedMicros >= mSessionStart[slotId]) {
+                mSessions[slotId].record(elapsedMicros - mSessionStart[slotId]);
+            }
+            mSessionStart[slotId] = -1;
+            break;
+        default:
+            break;
+        }
+    }
+
+    TypeStats get(int slotId, int type) {
+        Integer key = (slotId << 8) | type;
+        TypeStats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new TypeStats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    Map<Integer, TypeStats> getStats() {
+        return mStats;
+    }
+
+    void print(PrintStream out) {
+        out.println("== " + label + ": " + mSections + " slot rings, " + mRecords + " records");
+        out.println(String.format("%-4s %-26s %8s %8s %8s %9s %9s %9s %9s %9s %9s %8s %8s",
+                "slot", "type", "cmds", "resps", "dropped", "p50_ms", "p90_ms", "p99_ms",
+                "max_ms", "wait_p50", "wait_p99", "timeout%", "noresp%"));
+        for (Map.Entry<Integer, TypeStats> entry : mStats.entrySet()) {
+            TypeStats stats = entry.getValue();
+            out.println(String.format("%-4d %-26s %8d %8d %8d %9s %9s %9s %9s %9s %9s %8s %8s",
+                    entry.getKey() >> 8, CommandTypes.name(entry.getKey() & 0xff),
+                    stats.commands, stats.responses, stats.dropped,
+                    millis(stats.latency.getPercentile(50)),
+                    millis(stats.latency.getPercentile(90)),
+                    millis(stats.latency.getPercentile(99)), millis(stats.latency.getMax()),
+                    millis(stats.wait.getPercentile(50)), millis(stats.wait.getPercentile(99)),
+                    percent(stats.timeouts, stats.responses),
+                    percent(stats.noResponse, stats.responses)));
+        }
+        for (int i = 0; i < JournalReader.MAX_SLOTS; i++) {
+            Histogram sessions = mSessions[i];
+            if (sessions.getCount() > 0) {
+                out.println("sessions slot=" + i + " count=" + sessions.getCount()
+                        + " p50_ms=" + millis(sessions.getPercentile(50))
+                        + " p90_ms=" + millis(sessions.getPercentile(90))
+                        + " p99_ms=" + millis(sessions.getPercentile(99))
+                        + " max_ms=" + millis(sessions.getMax()));
+            }
+        }
+    }
+
+    static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    static String percent(long count, long total) {
+        return (total > 0) ? String.format("%.2f", 100.0 * count / total) : "-";
+    }
+}